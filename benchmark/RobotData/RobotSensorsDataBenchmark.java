@@ -0,0 +1,171 @@
+package RobotData;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the hot paths of {@link RobotSensorsData} for robots of different sizes.
+ * Build with {@code mvn -P benchmark package} and run {@code java -jar target/benchmarks.jar},
+ * which adds the GC profiler so allocation rates are reported next to throughput.
+ * Usual JMH options apply, e.g. {@code -p boards=8 -p nicknameDensity=0.5 update}.
+ */
+@SuppressWarnings("unused")
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RobotSensorsDataBenchmark {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    // Robot with boards types of indexes boards each, every board with ports ports.
+    // nicknameDensity is the share of indexes and ports given a nickname, used by the json sent to the robot.
+    @State(Scope.Benchmark)
+    public static class Robot {
+        @Param({"1", "4"})
+        public int boards;
+        @Param({"1", "4"})
+        public int indexes;
+        @Param({"4", "32"})
+        public int ports;
+        @Param({"0", "0.5", "1"})
+        public double nicknameDensity;
+
+        String nicknamesJson;
+        String boardsJson;
+        String nicknamedBoardsJson;
+        String valuesJson;
+
+        RobotSensorsData robotSensorsData;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Map<String, List<Map<String, Object>>> nicknames = new LinkedHashMap<>();
+            Map<String, Map<String, List<String>>> realBoards = new LinkedHashMap<>();
+            Map<String, Map<String, List<String>>> nicknamedBoards = new LinkedHashMap<>();
+            Map<String, Map<String, Map<String, Double>>> values = new LinkedHashMap<>();
+            Random random = new Random(42);
+            for (int b = 0; b < boards; b++) {
+                String board = "Board" + b;
+                List<Map<String, Object>> indexNicknames = new ArrayList<>();
+                for (int i = 1; i <= indexes; i++) {
+                    Map<String, Object> indexNickname = new LinkedHashMap<>();
+                    String index = nicknamed(i) ? "Index" + i : String.valueOf(i);
+                    if (!index.equals(String.valueOf(i))) {
+                        indexNickname.put("Name", index);
+                    }
+                    for (int p = 0; p < ports; p++) {
+                        String real = "P" + p;
+                        String port = nicknamed(i * ports + p) ? "Port" + p : real;
+                        if (!port.equals(real)) {
+                            indexNickname.put(real, Map.of("Name", port));
+                        }
+                        realBoards.computeIfAbsent(board, k -> new LinkedHashMap<>())
+                                .computeIfAbsent(String.valueOf(i), k -> new ArrayList<>()).add(real);
+                        nicknamedBoards.computeIfAbsent(board, k -> new LinkedHashMap<>())
+                                .computeIfAbsent(index, k -> new ArrayList<>()).add(port);
+                        values.computeIfAbsent(board, k -> new LinkedHashMap<>())
+                                .computeIfAbsent(index, k -> new LinkedHashMap<>()).put(port, random.nextDouble() * 100);
+                    }
+                    indexNicknames.add(indexNickname);
+                }
+                nicknames.put(board, indexNicknames);
+            }
+            Gson gson = new Gson();
+            nicknamesJson = gson.toJson(nicknames);
+            boardsJson = gson.toJson(realBoards);
+            nicknamedBoardsJson = gson.toJson(nicknamedBoards);
+            valuesJson = gson.toJson(values);
+            robotSensorsData = newRobot(true);
+            robotSensorsData.updateBoardMapValues(valuesJson);
+        }
+
+        // Spread nicknames evenly so every density gives the same share whatever the sizes
+        private boolean nicknamed(int n) {
+            return Math.floor((n + 1) * nicknameDensity) > Math.floor(n * nicknameDensity);
+        }
+
+        RobotSensorsData newRobot(boolean withPorts) {
+            RobotSensorsData robotSensorsData = new RobotSensorsData();
+            robotSensorsData.buildNicknameMaps(nicknamesJson);
+            if (withPorts) {
+                robotSensorsData.addToBoardsMap(boardsJson);
+            }
+            return robotSensorsData;
+        }
+    }
+
+    // Fresh robot without ports for every call, ports are only added once
+    @State(Scope.Thread)
+    public static class EmptyRobot {
+        RobotSensorsData robotSensorsData;
+
+        @Setup(Level.Invocation)
+        public void setUp(Robot robot) {
+            robotSensorsData = robot.newRobot(false);
+        }
+    }
+
+    // Fresh robot with all ports for every call, ports are only removed once
+    @State(Scope.Thread)
+    public static class FullRobot {
+        RobotSensorsData robotSensorsData;
+
+        @Setup(Level.Invocation)
+        public void setUp(Robot robot) {
+            robotSensorsData = robot.newRobot(true);
+        }
+    }
+
+    @Benchmark
+    public void updateBoardMapValues(Robot robot) {
+        robot.robotSensorsData.updateBoardMapValues(robot.valuesJson);
+    }
+
+    @Benchmark
+    public String toJson(Robot robot) {
+        return robot.robotSensorsData.toJson();
+    }
+
+    @Benchmark
+    public String toJsonWithoutNicknames(Robot robot) {
+        return robot.robotSensorsData.toJson(false);
+    }
+
+    @Benchmark
+    public RobotSensorsData deepCopy(Robot robot) {
+        return robot.robotSensorsData.deepCopy();
+    }
+
+    @Benchmark
+    public RobotSensorsData addToBoardsMap(Robot robot, EmptyRobot empty) {
+        empty.robotSensorsData.addToBoardsMap(robot.nicknamedBoardsJson);
+        return empty.robotSensorsData;
+    }
+
+    @Benchmark
+    public RobotSensorsData removeFromBoardsMap(Robot robot, FullRobot full) {
+        full.robotSensorsData.removeFromBoardsMap(robot.nicknamedBoardsJson);
+        return full.robotSensorsData;
+    }
+
+    @Benchmark
+    public String replaceNicksInJson(Robot robot) {
+        return robot.robotSensorsData.replaceNicksInJson(robot.nicknamedBoardsJson);
+    }
+}
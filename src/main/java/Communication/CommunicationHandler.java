@@ -3,12 +3,19 @@ package Communication;
 import com.rabbitmq.client.*;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 @SuppressWarnings("unused")
 public class CommunicationHandler implements ICommunication {
 
+    private final Logger logger = Logger.getLogger("Communication Handler");
     private Channel commandsChannel;
     private Channel dataChannel;
     private Channel freeChannel;
@@ -16,6 +23,11 @@ public class CommunicationHandler implements ICommunication {
     private Connection connection;
     private final ConnectionFactory factory = new ConnectionFactory();
     private int messageId = 0;
+    private volatile TrafficRecorder recorder;
+    // Messages per queue that may wait for a confirm at once, 0 while publishing without confirms
+    private int confirmWindow;
+    private long confirmTimeoutMillis;
+    private volatile Map<QueueNameEnum, PublisherConfirms> confirms = Map.of();
 
     /**
      * Connect to RabbitMQ queues.
@@ -38,6 +50,56 @@ public class CommunicationHandler implements ICommunication {
         dataChannel.queueDeclare(QueueNameEnum.Data.name(), false, false, false, args);
         sosChannel.queueDeclare(QueueNameEnum.Free.name(), false, false, false, null);
         freeChannel.queueDeclare(QueueNameEnum.SOS.name(), false, false, false, null);
+        failOutstanding(); // Confirms of earlier channels never arrive on these
+        confirms = Map.of();
+        if (confirmWindow > 0) {
+            selectConfirms();
+        }
+    }
+
+    /**
+     * Publish in confirm mode from now on, waiting at most 30 seconds for a full window,
+     * see {@link #enablePublisherConfirms(int, long)}.
+     */
+    public void enablePublisherConfirms(int window) throws IOException {
+        enablePublisherConfirms(window, 30_000);
+    }
+
+    /**
+     * Publish in confirm mode from now on, see {@link #sendConfirmed(byte[], QueueNameEnum)}.
+     * Takes effect on connect if not connected yet. Enabling confirms again only changes the window.
+     * @param window most messages per queue waiting for the broker to confirm them, sending more waits
+     * @param timeoutMillis longest time a send waits for the window, it fails after that
+     * @throws IOException if a channel could not be put in confirm mode
+     */
+    public synchronized void enablePublisherConfirms(int window, long timeoutMillis) throws IOException {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Confirm window must be positive - " + window);
+        }
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Confirm timeout must be positive - " + timeoutMillis);
+        }
+        confirmWindow = window;
+        confirmTimeoutMillis = timeoutMillis;
+        if (!confirms.isEmpty()) {
+            confirms.values().forEach(queueConfirms -> queueConfirms.setWindow(window, timeoutMillis));
+        } else if (connection != null) {
+            selectConfirms();
+        }
+    }
+
+    private void selectConfirms() throws IOException {
+        Map<QueueNameEnum, PublisherConfirms> confirms = new EnumMap<>(QueueNameEnum.class);
+        confirms.put(QueueNameEnum.Commands, new PublisherConfirms(commandsChannel, confirmWindow, confirmTimeoutMillis));
+        confirms.put(QueueNameEnum.Data, new PublisherConfirms(dataChannel, confirmWindow, confirmTimeoutMillis));
+        confirms.put(QueueNameEnum.SOS, new PublisherConfirms(sosChannel, confirmWindow, confirmTimeoutMillis));
+        confirms.put(QueueNameEnum.Free, new PublisherConfirms(freeChannel, confirmWindow, confirmTimeoutMillis));
+        this.confirms = confirms;
+    }
+
+    private void failOutstanding() {
+        IOException closed = new IOException("Connection closed before the broker confirmed the message");
+        confirms.values().forEach(queueConfirms -> queueConfirms.failOutstanding(closed));
     }
 
     /**
@@ -68,10 +130,17 @@ public class CommunicationHandler implements ICommunication {
     /**
      * Listen to queue and execute callback when messages from it arrive
      * @param queue name of queue to listen to
-     * @param callback to execute when messages arrive
+     * @param consumer to execute when messages arrive
      * @throws IOException thrown if connecting failed
      */
-    public void consumeFromQueue(QueueNameEnum queue, DeliverCallback callback) throws IOException {
+    public void consumeFromQueue(QueueNameEnum queue, DeliverCallback consumer) throws IOException {
+        DeliverCallback callback = (consumerTag, delivery) -> {
+            TrafficRecorder recorder = this.recorder;
+            if (recorder != null) {
+                recorder.recordDelivery(queue, delivery.getBody());
+            }
+            consumer.handle(consumerTag, delivery);
+        };
         switch (queue){
             case SOS:
                 sosChannel.basicConsume(queue.name(), true,
@@ -102,20 +171,20 @@ public class CommunicationHandler implements ICommunication {
      * @throws TimeoutException on no response from RabbitMQ server
      */
     public void closeConnection() throws IOException, TimeoutException {
-        if (commandsChannel != null){
-            commandsChannel.close();
-        }
-        if (dataChannel != null){
-            freeChannel.close();
-        }
-        if (sosChannel != null){
-            freeChannel.close();
-        }
-        if (freeChannel != null){
-            freeChannel.close();
-        }
-        if (connection != null){
-            connection.close();
+        try {
+            try {
+                for (Channel channel : new Channel[]{commandsChannel, dataChannel, sosChannel, freeChannel}) {
+                    if (channel != null && channel.isOpen()) {
+                        channel.close();
+                    }
+                }
+            } finally {
+                if (connection != null){
+                    connection.close(); // Closes any channel left open
+                }
+            }
+        } finally {
+            failOutstanding();
         }
     }
 
@@ -127,36 +196,95 @@ public class CommunicationHandler implements ICommunication {
      * @throws IOException on connection error
      */
     public void send(String message, QueueNameEnum queueName) throws IOException {
+        send(message.getBytes(), queueName);
+    }
+
+    /**
+     * Put message in Send queue as is, e.g. json written by RobotSensorsData.toJson to a byte stream.
+     * Does not wait for the broker. With publisher confirms enabled the message is still tracked,
+     * a nack or a connection closed before the confirm is only logged, use sendConfirmed to act on it.
+     *
+     * @param message body to send
+     * @param queueName  send the message in this queue
+     * @throws IOException on connection error, or if the confirm window stayed full for its timeout
+     */
+    public void send(byte[] message, QueueNameEnum queueName) throws IOException {
+        if (confirms.containsKey(queueName)) {
+            sendConfirmed(message, queueName).whenComplete((result, failure) -> {
+                if (failure != null) {
+                    logger.log(Level.SEVERE, "Message to " + queueName + " was not confirmed", failure);
+                }
+            });
+            return;
+        }
+        AMQP.BasicProperties properties = nextProperties();
         switch (queueName){
             case Commands:
-                commandsChannel.basicPublish("", queueName.name(), new AMQP.BasicProperties.Builder()
-                                .messageId(String.valueOf(messageId))
-                                .build(),
-                        message.getBytes());
+                commandsChannel.basicPublish("", queueName.name(), properties, message);
                 break;
 
             case Data:
-                dataChannel.basicPublish("", queueName.name(), new AMQP.BasicProperties.Builder()
-                                .messageId(String.valueOf(messageId))
-                                .build(),
-                        message.getBytes());
+                dataChannel.basicPublish("", queueName.name(), properties, message);
                 break;
 
             case SOS:
-                sosChannel.basicPublish("", queueName.name(), new AMQP.BasicProperties.Builder()
-                                .messageId(String.valueOf(messageId))
-                                .build(),
-                        message.getBytes());
+                sosChannel.basicPublish("", queueName.name(), properties, message);
                 break;
 
             case Free:
-                freeChannel.basicPublish("", queueName.name(), new AMQP.BasicProperties.Builder()
-                                .messageId(String.valueOf(messageId))
-                                .build(),
-                        message.getBytes());
+                freeChannel.basicPublish("", queueName.name(), properties, message);
                 break;
         }
-        messageId++;
+    }
+
+    /**
+     * Put length bytes of message from offset in Send queue, e.g. the buffer of a stream reused for every message.
+     * A range covering the whole array is published as is. amqp-client only publishes whole arrays,
+     * so any other range is copied once, which is the copy ByteArrayOutputStream.toByteArray would make.
+     *
+     * @param message array holding the body to send
+     * @param offset start of the body in message
+     * @param length bytes of the body
+     * @param queueName  send the message in this queue
+     * @throws IOException on connection error, or if the confirm window stayed full for its timeout
+     * @throws IndexOutOfBoundsException if the range is not within message
+     */
+    public void send(byte[] message, int offset, int length, QueueNameEnum queueName) throws IOException {
+        Objects.checkFromIndexSize(offset, length, message.length);
+        send(offset == 0 && length == message.length ? message : Arrays.copyOfRange(message, offset, offset + length), queueName);
+    }
+
+    /**
+     * Put message in Send queue and track it until the broker confirms it, without waiting for the confirm.
+     * Waits only while the confirm window of the queue is full, see {@link #enablePublisherConfirms(int)}.
+     *
+     * @param message to send
+     * @param queueName  send the message in this queue
+     * @return future completed when the broker acks the message, completed exceptionally with an IOException
+     * if it nacks it or the connection is closed first. Completed on the connection thread, use the async
+     * methods of the future for anything slow.
+     * @throws IOException on connection error
+     * @throws IllegalStateException if publisher confirms are not enabled
+     */
+    public CompletableFuture<Void> sendConfirmed(String message, QueueNameEnum queueName) throws IOException {
+        return sendConfirmed(message.getBytes(), queueName);
+    }
+
+    /**
+     * Like {@link #sendConfirmed(String, QueueNameEnum)} for a message body as is
+     */
+    public CompletableFuture<Void> sendConfirmed(byte[] message, QueueNameEnum queueName) throws IOException {
+        PublisherConfirms queueConfirms = confirms.get(queueName);
+        if (queueConfirms == null) {
+            throw new IllegalStateException("Publisher confirms are not enabled, see enablePublisherConfirms");
+        }
+        return queueConfirms.publish(queueName.name(), nextProperties(), message);
+    }
+
+    private synchronized AMQP.BasicProperties nextProperties() {
+        return new AMQP.BasicProperties.Builder()
+                .messageId(String.valueOf(messageId++))
+                .build();
     }
 
     /**
@@ -178,6 +306,14 @@ public class CommunicationHandler implements ICommunication {
         }
     }
 
+    /**
+     * Record every message delivered to consumers from now on, until set to null
+     * @param recorder to record deliveries to
+     */
+    public void setRecorder(TrafficRecorder recorder) {
+        this.recorder = recorder;
+    }
+
     /**
      * Set credentials of RabbitMQ service location
      * @param host name/IP address of target machine
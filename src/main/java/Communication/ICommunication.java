@@ -3,6 +3,7 @@ package Communication;
 import com.rabbitmq.client.DeliverCallback;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
 @SuppressWarnings("unused")
 public interface ICommunication {
@@ -15,6 +16,16 @@ public interface ICommunication {
 
     void send(String message, QueueNameEnum queue) throws IOException;
 
+    void send(byte[] message, QueueNameEnum queue) throws IOException;
+
+    void send(byte[] message, int offset, int length, QueueNameEnum queue) throws IOException;
+
+    void enablePublisherConfirms(int window) throws IOException;
+
+    CompletableFuture<Void> sendConfirmed(String message, QueueNameEnum queue) throws IOException;
+
+    CompletableFuture<Void> sendConfirmed(byte[] message, QueueNameEnum queue) throws IOException;
+
     void setCredentials(String host, String username, String password);
 
     void connect() throws IOException, TimeoutException;
@@ -0,0 +1,133 @@
+package Communication;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes on a channel in confirm mode, tracking every message by its publish sequence number
+ * until the broker acks or nacks it. At most window messages are outstanding, publishing
+ * more waits until earlier ones are confirmed, for at most the window timeout.
+ * Messages still outstanding when the channel shuts down are failed.
+ */
+final class PublisherConfirms implements ConfirmListener {
+
+    private final Channel channel;
+    private final Window window;
+    private int windowSize;
+    private volatile long windowTimeoutMillis;
+    //    publish sequence number -> completed when the broker confirms the message
+    private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> outstanding = new ConcurrentSkipListMap<>();
+
+    PublisherConfirms(Channel channel, int window, long windowTimeoutMillis) throws IOException {
+        this.channel = channel;
+        this.window = new Window(window);
+        windowSize = window;
+        this.windowTimeoutMillis = windowTimeoutMillis;
+        channel.confirmSelect();
+        channel.addConfirmListener(this);
+        channel.addShutdownListener(cause ->
+                failOutstanding(new IOException("Channel shut down before the broker confirmed the message", cause)));
+    }
+
+    // Allow window messages to be outstanding from now on, messages already outstanding stay tracked
+    synchronized void setWindow(int window, long windowTimeoutMillis) {
+        this.windowTimeoutMillis = windowTimeoutMillis;
+        if (window > windowSize) {
+            this.window.release(window - windowSize);
+        } else {
+            this.window.reducePermits(windowSize - window);
+        }
+        windowSize = window;
+    }
+
+    /**
+     * Publish body to queue, waiting while the window is full.
+     * @return future completed once the broker acks the message, completed exceptionally if it nacks it
+     * @throws IOException on connection error, if the window stayed full for the window timeout
+     * or if interrupted while waiting
+     */
+    CompletableFuture<Void> publish(String queue, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        try {
+            if (!window.tryAcquire(windowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException(String.format("No confirms of earlier messages to %s within %d ms", queue, windowTimeoutMillis));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for confirms of earlier messages");
+        }
+        CompletableFuture<Void> confirmed = new CompletableFuture<>();
+        long sequenceNumber;
+        synchronized (this) { // Sequence numbers follow the order messages are published in
+            sequenceNumber = channel.getNextPublishSeqNo();
+            outstanding.put(sequenceNumber, confirmed);
+            try {
+                channel.basicPublish("", queue, properties, body);
+            } catch (IOException | RuntimeException e) {
+                outstanding.remove(sequenceNumber);
+                window.release();
+                throw e;
+            }
+        }
+        confirmed.whenComplete((result, failure) -> window.release());
+        return confirmed;
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        confirmed(deliveryTag, multiple).forEach(confirmed -> confirmed.complete(null));
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        confirmed(deliveryTag, multiple).forEach(confirmed ->
+                confirmed.completeExceptionally(new IOException("Broker nacked message " + deliveryTag)));
+    }
+
+    // Fail every message still waiting for a confirm, e.g. when the channel is closed
+    void failOutstanding(IOException cause) {
+        while (!outstanding.isEmpty()) {
+            Map.Entry<Long, CompletableFuture<Void>> message = outstanding.pollFirstEntry();
+            if (message != null) {
+                message.getValue().completeExceptionally(cause);
+            }
+        }
+    }
+
+    // Semaphore that can shrink below the permits it handed out
+    private static final class Window extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private Window(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    // Removes the messages a confirm is for, every message up to deliveryTag if multiple
+    private List<CompletableFuture<Void>> confirmed(long deliveryTag, boolean multiple) {
+        if (!multiple) {
+            CompletableFuture<Void> confirmed = outstanding.remove(deliveryTag);
+            return confirmed == null ? List.of() : List.of(confirmed);
+        }
+        Map<Long, CompletableFuture<Void>> confirmed = outstanding.headMap(deliveryTag, true);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(confirmed.values());
+        confirmed.clear();
+        return futures;
+    }
+}
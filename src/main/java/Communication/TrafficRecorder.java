@@ -0,0 +1,118 @@
+package Communication;
+
+import RobotData.SensorCall;
+import RobotData.SensorCallRecorder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records sensor calls and queue deliveries to a file for {@link TrafficReplayer}.
+ * Set it as the call recorder of robot data with {@code RobotSensorsData.setCallRecorder}
+ * and as the recorder of a {@link CommunicationHandler} with {@code setRecorder}.
+ * Many threads may record at once, records are written in the order they arrive.
+ * <p>
+ * File: int magic, byte version, long start in milliseconds since the epoch, then records of
+ * byte kind (sensor call ordinal, or DELIVERY followed by byte queue ordinal),
+ * var-length nanoseconds since the previous record, var-length body length and the body.
+ * A batch of updates is a record of kind BATCH, var-length nanoseconds since the previous record,
+ * var-length number of updates, then the var-length length and body of every update.
+ */
+@SuppressWarnings("unused")
+public class TrafficRecorder implements SensorCallRecorder, Closeable {
+
+    static final int MAGIC = 0x52545352; // "RSTR"
+    static final int VERSION = 2; // 1 had no batches
+    static final int DELIVERY = 0x7f;
+    static final int BATCH = 0x7e;
+
+    private final Logger logger = Logger.getLogger("Traffic Recorder");
+    private final DataOutputStream out;
+    private long lastNanos;
+    private boolean failed;
+
+    /**
+     * @param file to record to, replaced if it exists
+     * @throws IOException if the file could not be created
+     */
+    public TrafficRecorder(Path file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        lastNanos = System.nanoTime();
+    }
+
+    @Override
+    public void record(SensorCall call, byte[] json) {
+        write(call.ordinal(), -1, json);
+    }
+
+    @Override
+    public synchronized void recordBatch(List<byte[]> jsons) {
+        if (failed) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            out.writeByte(BATCH);
+            writeVarLong(now - lastNanos);
+            writeVarLong(jsons.size());
+            for (byte[] json : jsons) {
+                writeVarLong(json.length);
+                out.write(json);
+            }
+            lastNanos = now;
+        } catch (IOException e) {
+            failed = true;
+            logger.log(Level.SEVERE, "Recording stopped", e);
+        }
+    }
+
+    public void recordDelivery(QueueNameEnum queue, byte[] body) {
+        write(DELIVERY, queue.ordinal(), body);
+    }
+
+    // A failed write stops the recording rather than failing the traffic being recorded
+    private synchronized void write(int kind, int queue, byte[] body) {
+        if (failed) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            out.writeByte(kind);
+            if (queue >= 0) {
+                out.writeByte(queue);
+            }
+            writeVarLong(now - lastNanos);
+            writeVarLong(body.length);
+            out.write(body);
+            lastNanos = now;
+        } catch (IOException e) {
+            failed = true;
+            logger.log(Level.SEVERE, "Recording stopped", e);
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        failed = true; // Nothing is recorded after closing
+        out.close();
+    }
+}
@@ -0,0 +1,148 @@
+package Communication;
+
+import RobotData.RobotSensorsData;
+import RobotData.SensorCall;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feeds a recording of {@link TrafficRecorder} back through the same calls, without robots or a broker.
+ * Sensor calls are made on robot data and deliveries are handed to the callbacks of their queues,
+ * as consumeFromQueue would. Records are replayed on the calling thread in the order they were recorded,
+ * a batch of updates as a single updateBoardMapValues of the batch.
+ */
+@SuppressWarnings("unused")
+public class TrafficReplayer {
+
+    // Replay records back to back without waiting
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final Logger logger = Logger.getLogger("Traffic Replayer");
+    private final Path file;
+
+    public TrafficReplayer(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Replay the recording.
+     * @param robotSensorsData receives the sensor calls, null to skip them
+     * @param consumers callbacks of queues, deliveries of other queues are skipped
+     * @param speed 1 replays at the recorded pace, 10 ten times faster, MAX_SPEED as fast as possible
+     * @return number of records replayed
+     * @throws IOException if the recording could not be read
+     */
+    public long replay(RobotSensorsData robotSensorsData, Map<QueueNameEnum, DeliverCallback> consumers, double speed)
+            throws IOException {
+        if (!(speed > 0)) {
+            String errorMessage = String.format("Replay speed must be positive, got %s", speed);
+            logger.log(Level.SEVERE, errorMessage);
+            throw new IllegalArgumentException(errorMessage);
+        }
+        SensorCall[] calls = SensorCall.values();
+        QueueNameEnum[] queues = QueueNameEnum.values();
+        long replayed = 0;
+        long deliveryTag = 1;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != TrafficRecorder.MAGIC) {
+                throw new IOException(file + " is not a traffic recording");
+            }
+            int version = in.readByte();
+            if (version < 1 || version > TrafficRecorder.VERSION) {
+                throw new IOException(String.format("%s is a traffic recording of unknown version - %d", file, version));
+            }
+            in.readLong(); // Start of the recording
+            long start = System.nanoTime();
+            long recordedNanos = 0;
+            int kind;
+            while ((kind = in.read()) >= 0) {
+                int queue = kind == TrafficRecorder.DELIVERY ? in.readUnsignedByte() : -1;
+                recordedNanos += readVarLong(in);
+                List<byte[]> batch = null;
+                byte[] body = null;
+                if (kind == TrafficRecorder.BATCH) {
+                    int size = (int) readVarLong(in);
+                    batch = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        batch.add(readBody(in));
+                    }
+                } else {
+                    body = readBody(in);
+                }
+                if (speed != MAX_SPEED) { // Wait relative to the start, so delays do not add up
+                    long due = start + (long) (recordedNanos / speed);
+                    for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                if (batch != null) {
+                    if (robotSensorsData == null) {
+                        continue;
+                    }
+                    robotSensorsData.updateBoardMapValuesFromBytes(batch);
+                } else if (queue >= 0) {
+                    DeliverCallback consumer = queue < queues.length ? consumers.get(queues[queue]) : null;
+                    if (consumer == null) {
+                        continue;
+                    }
+                    Envelope envelope = new Envelope(deliveryTag++, false, "", queues[queue].name());
+                    consumer.handle("replay", new Delivery(envelope, new AMQP.BasicProperties(), body));
+                } else if (robotSensorsData != null && kind < calls.length) {
+                    replay(robotSensorsData, calls[kind], body);
+                } else {
+                    continue;
+                }
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    private static void replay(RobotSensorsData robotSensorsData, SensorCall call, byte[] json) {
+        switch (call) {
+            case UPDATE:
+                robotSensorsData.updateBoardMapValues(json);
+                break;
+
+            case ADD:
+                robotSensorsData.addToBoardsMap(json);
+                break;
+
+            case REMOVE:
+                robotSensorsData.removeFromBoardsMap(json);
+                break;
+        }
+    }
+
+    private static byte[] readBody(DataInputStream in) throws IOException {
+        byte[] body = new byte[(int) readVarLong(in)];
+        in.readFully(body);
+        return body;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            if (shift > 56) {
+                throw new IOException("Recording is corrupt");
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package RobotData;
+
+/**
+ * Statistics of the samples in one window of a {@link PortAggregate}.
+ * Min, max, mean and variance are NaN while the window is empty,
+ * variance is the population variance of the window.
+ */
+@SuppressWarnings("unused")
+public final class AggregateStatistics {
+
+    private final long windowStart;
+    private final long count;
+    private final double min;
+    private final double max;
+    private final double mean;
+    private final double variance;
+    private final double ewma;
+
+    AggregateStatistics(long windowStart, long count, double min, double max, double mean, double variance, double ewma) {
+        this.windowStart = windowStart;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.variance = variance;
+        this.ewma = ewma;
+    }
+
+    // Start of a tumbling window in milliseconds since the epoch, 0 for sliding windows
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getVariance() {
+        return variance;
+    }
+
+    // Exponentially weighted moving average of all samples so far, not only those of the window
+    public double getEwma() {
+        return ewma;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d min=%s max=%s mean=%s variance=%s ewma=%s", count, min, max, mean, variance, ewma);
+    }
+}
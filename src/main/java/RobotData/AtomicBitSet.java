@@ -0,0 +1,117 @@
+package RobotData;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bitset whose bits can be set and cleared from many threads at once.
+ * Bits are kept in chunks that are added as the set grows and never replaced,
+ * so growing does not lose concurrent updates.
+ */
+final class AtomicBitSet {
+
+    private static final int CHUNK_WORDS = 64;
+    private static final int CHUNK_SHIFT = 12; // 64 words of 64 bits
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private volatile AtomicLongArray[] chunks = {new AtomicLongArray(CHUNK_WORDS)};
+
+    boolean get(int bit) {
+        AtomicLongArray[] chunks = this.chunks;
+        int chunk = bit >>> CHUNK_SHIFT;
+        return chunk < chunks.length && (chunks[chunk].get(word(bit)) & (1L << bit)) != 0;
+    }
+
+    void set(int bit) {
+        AtomicLongArray chunk = chunk(bit);
+        int word = word(bit);
+        long mask = 1L << bit;
+        long bits;
+        do {
+            bits = chunk.get(word);
+            if ((bits & mask) != 0) {
+                return;
+            }
+        } while (!chunk.compareAndSet(word, bits, bits | mask));
+    }
+
+    void clear(int bit) {
+        getAndClear(bit);
+    }
+
+    // Clear bit, returning whether it was set
+    boolean getAndClear(int bit) {
+        AtomicLongArray[] chunks = this.chunks;
+        int chunk = bit >>> CHUNK_SHIFT;
+        if (chunk >= chunks.length) {
+            return false;
+        }
+        int word = word(bit);
+        long mask = 1L << bit;
+        long bits;
+        do {
+            bits = chunks[chunk].get(word);
+            if ((bits & mask) == 0) {
+                return false;
+            }
+        } while (!chunks[chunk].compareAndSet(word, bits, bits & ~mask));
+        return true;
+    }
+
+    /**
+     * @return first set bit from the given one on, -1 if there is none
+     */
+    int nextSetBit(int from) {
+        AtomicLongArray[] chunks = this.chunks;
+        int chunk = from >>> CHUNK_SHIFT;
+        int word = word(from);
+        long bits = chunk < chunks.length ? chunks[chunk].get(word) & (-1L << from) : 0;
+        while (chunk < chunks.length) {
+            if (bits != 0) {
+                return (chunk << CHUNK_SHIFT) + (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == CHUNK_WORDS) {
+                word = 0;
+                chunk++;
+            }
+            bits = chunk < chunks.length ? chunks[chunk].get(word) : 0;
+        }
+        return -1;
+    }
+
+    boolean isEmpty() {
+        return nextSetBit(0) < 0;
+    }
+
+    // Clear all bits, bits set concurrently might survive
+    void clear() {
+        for (AtomicLongArray chunk : chunks) {
+            for (int word = 0; word < CHUNK_WORDS; word++) {
+                chunk.set(word, 0);
+            }
+        }
+    }
+
+    private static int word(int bit) {
+        return (bit & CHUNK_MASK) >>> 6;
+    }
+
+    private AtomicLongArray chunk(int bit) {
+        int chunk = bit >>> CHUNK_SHIFT;
+        AtomicLongArray[] chunks = this.chunks;
+        return chunk < chunks.length ? chunks[chunk] : grow(chunk)[chunk];
+    }
+
+    private synchronized AtomicLongArray[] grow(int chunk) {
+        AtomicLongArray[] chunks = this.chunks;
+        if (chunk < chunks.length) {
+            return chunks;
+        }
+        AtomicLongArray[] grown = Arrays.copyOf(chunks, Math.max(chunk + 1, chunks.length * 2));
+        for (int i = chunks.length; i < grown.length; i++) {
+            grown[i] = new AtomicLongArray(CHUNK_WORDS);
+        }
+        this.chunks = grown;
+        return grown;
+    }
+}
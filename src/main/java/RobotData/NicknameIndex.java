@@ -0,0 +1,127 @@
+package RobotData;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable two way lookup between board indexes / ports and their nicknames.
+ * Indexes and ports are found both by their raw name ("2") and by their
+ * '_' prefixed form ("_2"), nicknames resolve back to the raw name.
+ */
+final class NicknameIndex {
+
+    static final NicknameIndex EMPTY = new NicknameIndex(Map.of());
+
+    //    board name -> nicknames of its indexes and ports
+    private final Map<String, BoardNicknames> boards;
+
+    private NicknameIndex(Map<String, BoardNicknames> boards) {
+        this.boards = boards;
+    }
+
+    /**
+     * Compile the nickname maps built by {@link RobotSensorsData#buildNicknameMaps(String)}.
+     * @param boardNicknames board name -> board index -> board nickname
+     * @param portNicknames board name -> board index -> board ports -> port nicknames
+     */
+    static NicknameIndex of(Map<String, Map<String, String>> boardNicknames,
+                            Map<String, Map<String, Map<String, String>>> portNicknames) {
+        Map<String, BoardNicknames> boards = new HashMap<>();
+        boardNicknames.forEach((board, indexes) ->
+                indexes.forEach((index, nickname) ->
+                        boards.computeIfAbsent(board, b -> new BoardNicknames()).putIndex(index, nickname)));
+        portNicknames.forEach((board, indexes) ->
+                indexes.forEach((index, ports) ->
+                        ports.forEach((port, nickname) ->
+                                boards.computeIfAbsent(board, b -> new BoardNicknames()).putPort(index, port, nickname))));
+        boards.values().forEach(BoardNicknames::freeze);
+        return new NicknameIndex(Map.copyOf(boards));
+    }
+
+    /**
+     * @return raw index ("1") of the board with this nickname, null if no board is named so
+     */
+    String indexOf(String board, String nickname) {
+        BoardNicknames nicknames = boards.get(board);
+        return nicknames == null ? null : nicknames.nicknameToIndex.get(nickname);
+    }
+
+    /**
+     * @param index raw or '_' prefixed board index
+     * @return nickname of the board, null if it has none
+     */
+    String indexNickname(String board, String index) {
+        BoardNicknames nicknames = boards.get(board);
+        return nicknames == null ? null : nicknames.indexToNickname.get(index);
+    }
+
+    /**
+     * @param index raw or '_' prefixed board index
+     * @return raw name of the port with this nickname, null if no port is named so
+     */
+    String portOf(String board, String index, String nickname) {
+        IndexNicknames ports = ports(board, index);
+        return ports == null ? null : ports.nicknameToPort.get(nickname);
+    }
+
+    /**
+     * @param index raw or '_' prefixed board index
+     * @param port raw or '_' prefixed port name
+     * @return nickname of the port, null if it has none
+     */
+    String portNickname(String board, String index, String port) {
+        IndexNicknames ports = ports(board, index);
+        return ports == null ? null : ports.portToNickname.get(port);
+    }
+
+    private IndexNicknames ports(String board, String index) {
+        BoardNicknames nicknames = boards.get(board);
+        return nicknames == null ? null : nicknames.indexes.get(index);
+    }
+
+    // Key under both its raw and '_' prefixed forms, the raw form wins on collision
+    private static <V> void putBothForms(Map<String, V> map, String key, V value) {
+        map.put(key, value);
+        if (!key.isEmpty() && Character.isDigit(key.charAt(0))) {
+            map.putIfAbsent("_" + key, value);
+        }
+    }
+
+    private static final class BoardNicknames {
+        private Map<String, String> indexToNickname = new HashMap<>();
+        private Map<String, String> nicknameToIndex = new HashMap<>();
+        private Map<String, IndexNicknames> indexes = new HashMap<>();
+
+        private void putIndex(String index, String nickname) {
+            putBothForms(indexToNickname, index, nickname);
+            nicknameToIndex.put(nickname, index);
+        }
+
+        private void putPort(String index, String port, String nickname) {
+            IndexNicknames ports = indexes.get(index);
+            if (ports == null) {
+                ports = new IndexNicknames();
+                putBothForms(indexes, index, ports);
+            }
+            putBothForms(ports.portToNickname, port, nickname);
+            ports.nicknameToPort.put(nickname, port);
+        }
+
+        private void freeze() {
+            indexToNickname = Map.copyOf(indexToNickname);
+            nicknameToIndex = Map.copyOf(nicknameToIndex);
+            indexes.values().forEach(IndexNicknames::freeze);
+            indexes = Map.copyOf(indexes);
+        }
+    }
+
+    private static final class IndexNicknames {
+        private Map<String, String> portToNickname = new HashMap<>();
+        private Map<String, String> nicknameToPort = new HashMap<>();
+
+        private void freeze() {
+            portToNickname = Map.copyOf(portToNickname);
+            nicknameToPort = Map.copyOf(nicknameToPort);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package RobotData;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Min, max, mean, variance and EWMA of the values set to one port, updated with every value.
+ * A tumbling aggregate covers consecutive windows of a fixed duration, aligned to the epoch,
+ * and rolls over on the first value set after its window ended.
+ * A sliding aggregate covers the last values set, up to a fixed number of them.
+ * Updating takes constant time, amortized for the sliding min and max.
+ * Aggregates are updated under the lock of their board and read optimistically, without locking
+ * unless a value of the board is being set at the same time.
+ * An aggregate stops updating once its port is removed.
+ */
+@SuppressWarnings("unused")
+public final class PortAggregate {
+
+    private static final AggregateStatistics EMPTY =
+            new AggregateStatistics(0, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+
+    private final StampedLock boardLock;
+    private final String boardName;
+    private final String index;
+    private final String port;
+    private final double ewmaAlpha;
+    // Duration of a tumbling window, 0 for sliding aggregates
+    private final long windowMillis;
+    // Values of a sliding window by sample number modulo its length, null for tumbling aggregates
+    private final double[] window;
+    private final Extremes minimums;
+    private final Extremes maximums;
+
+    private long windowStart;
+    private long count;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    // Welford's running mean and sum of squared differences from it
+    private double mean = Double.NaN;
+    private double squares;
+    private double ewma = Double.NaN;
+    // Number of samples ever added to a sliding window
+    private long samples;
+    private AggregateStatistics lastWindow;
+
+    private PortAggregate(StampedLock boardLock, String boardName, String index, String port,
+                          double ewmaAlpha, long windowMillis, int windowSamples) {
+        this.boardLock = boardLock;
+        this.boardName = boardName;
+        this.index = index;
+        this.port = port;
+        this.ewmaAlpha = ewmaAlpha;
+        this.windowMillis = windowMillis;
+        window = windowSamples > 0 ? new double[windowSamples] : null;
+        minimums = windowSamples > 0 ? new Extremes(windowSamples, false) : null;
+        maximums = windowSamples > 0 ? new Extremes(windowSamples, true) : null;
+    }
+
+    static PortAggregate tumbling(StampedLock boardLock, String boardName, String index, String port,
+                                  long windowMillis, double ewmaAlpha) {
+        return new PortAggregate(boardLock, boardName, index, port, ewmaAlpha, windowMillis, 0);
+    }
+
+    static PortAggregate sliding(StampedLock boardLock, String boardName, String index, String port,
+                                 int windowSamples, double ewmaAlpha) {
+        return new PortAggregate(boardLock, boardName, index, port, ewmaAlpha, 0, windowSamples);
+    }
+
+    // Caller holds the write lock of the board
+    void add(long time, double value) {
+        ewma = Double.isNaN(ewma) ? value : ewmaAlpha * value + (1 - ewmaAlpha) * ewma;
+        if (window != null) {
+            slide(value);
+            return;
+        }
+        long start = time - Math.floorMod(time, windowMillis);
+        if (count > 0 && start != windowStart) {
+            lastWindow = statistics();
+            count = 0;
+        }
+        if (count == 0) {
+            windowStart = start;
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        include(value);
+    }
+
+    private void slide(double value) {
+        long sample = samples++;
+        int position = (int) (sample % window.length);
+        if (count == window.length) {
+            exclude(window[position]);
+        }
+        window[position] = value;
+        include(value);
+        minimums.add(sample, value, window);
+        maximums.add(sample, value, window);
+    }
+
+    private void include(double value) {
+        count++;
+        if (count == 1) {
+            mean = value;
+            squares = 0;
+            return;
+        }
+        double difference = value - mean;
+        mean += difference / count;
+        squares += difference * (value - mean);
+    }
+
+    private void exclude(double value) {
+        count--;
+        if (count == 0) {
+            mean = Double.NaN;
+            squares = 0;
+            return;
+        }
+        double difference = value - mean;
+        mean -= difference / count;
+        squares -= difference * (value - mean);
+    }
+
+    /**
+     * @return statistics of the current window
+     */
+    public AggregateStatistics getStatistics() {
+        long stamp = boardLock.tryOptimisticRead();
+        AggregateStatistics statistics = statistics();
+        if (!boardLock.validate(stamp)) {
+            stamp = boardLock.readLock();
+            try {
+                statistics = statistics();
+            } finally {
+                boardLock.unlockRead(stamp);
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * @return statistics of the last completed tumbling window, null if none completed yet
+     * or the aggregate is sliding
+     */
+    public AggregateStatistics getLastWindow() {
+        long stamp = boardLock.tryOptimisticRead();
+        AggregateStatistics statistics = lastWindow;
+        if (!boardLock.validate(stamp)) {
+            stamp = boardLock.readLock();
+            try {
+                statistics = lastWindow;
+            } finally {
+                boardLock.unlockRead(stamp);
+            }
+        }
+        return statistics;
+    }
+
+    private AggregateStatistics statistics() {
+        if (count == 0) {
+            return Double.isNaN(ewma) ? EMPTY
+                    : new AggregateStatistics(windowStart, 0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, ewma);
+        }
+        double min = window != null ? minimums.get(window) : this.min;
+        double max = window != null ? maximums.get(window) : this.max;
+        return new AggregateStatistics(windowStart, count, min, max, mean, Math.max(squares, 0) / count, ewma);
+    }
+
+    public String getBoardName() {
+        return boardName;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return boardName + "/" + index + "/" + port + (window != null
+                ? " last " + window.length + " samples"
+                : " every " + windowMillis + " ms");
+    }
+
+    // Sample numbers of a sliding window whose values may still become its minimum (or maximum),
+    // oldest first, each value strictly better than the ones before it
+    private static final class Extremes {
+        private final long[] samples;
+        private final boolean max;
+        private int head;
+        private int size;
+
+        private Extremes(int length, boolean max) {
+            samples = new long[length];
+            this.max = max;
+        }
+
+        private void add(long sample, double value, double[] window) {
+            int length = samples.length;
+            while (size > 0 && samples[head] <= sample - length) { // Left the window
+                head = (head + 1) % length;
+                size--;
+            }
+            while (size > 0 && !isBetter(value(samples[(head + size - 1) % length], window), value)) {
+                size--;
+            }
+            samples[(head + size) % length] = sample;
+            size++;
+        }
+
+        private boolean isBetter(double extreme, double value) {
+            return max ? extreme > value : extreme < value;
+        }
+
+        private double get(double[] window) {
+            return size == 0 ? Double.NaN : value(samples[head], window);
+        }
+
+        private static double value(long sample, double[] window) {
+            return window[(int) (sample % window.length)];
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package RobotData;
+
+/**
+ * Change of the value of one port, named by its real board index and port.
+ * A value is null when the port has no value.
+ */
+@SuppressWarnings("unused")
+public final class PortChange {
+
+    private final String boardName;
+    private final String index;
+    private final String port;
+    private final Double oldValue;
+    private final Double newValue;
+
+    PortChange(String boardName, String index, String port, Double oldValue, Double newValue) {
+        this.boardName = boardName;
+        this.index = index;
+        this.port = port;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public String getBoardName() {
+        return boardName;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    public Double getOldValue() {
+        return oldValue;
+    }
+
+    public Double getNewValue() {
+        return newValue;
+    }
+
+    @Override
+    public String toString() {
+        return boardName + "/" + index + "/" + port + ": " + oldValue + " -> " + newValue;
+    }
+}
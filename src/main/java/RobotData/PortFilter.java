@@ -0,0 +1,70 @@
+package RobotData;
+
+/**
+ * Drops values of a port that hardly differ from its current value or come too soon after the last one kept,
+ * see {@link RobotSensorsData#setPortFilter(String, String, String, PortFilter)}.
+ * A value is inside the dead band when it differs from the current value by less than the larger of
+ * the absolute band and the relative band times the current value. Values that set or clear a port
+ * always pass the dead band. Dropped values are lost, not delayed.
+ */
+@SuppressWarnings("unused")
+public final class PortFilter {
+
+    private final double absoluteBand;
+    private final double relativeBand;
+    private final long minIntervalMillis;
+
+    /**
+     * @param absoluteBand smallest change kept, 0 keeps every change
+     * @param relativeBand smallest change kept as a fraction of the current value, 0 keeps every change
+     * @param minIntervalMillis least time between values kept, 0 keeps values however often they come
+     * @throws IllegalArgumentException if any of them is negative
+     */
+    public PortFilter(double absoluteBand, double relativeBand, long minIntervalMillis) throws IllegalArgumentException {
+        if (!(absoluteBand >= 0) || !(relativeBand >= 0) || minIntervalMillis < 0) {
+            throw new IllegalArgumentException(String.format("Filter bands and interval cannot be negative - %s, %s, %d",
+                    absoluteBand, relativeBand, minIntervalMillis));
+        }
+        this.absoluteBand = absoluteBand;
+        this.relativeBand = relativeBand;
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    public static PortFilter deadBand(double absoluteBand) {
+        return new PortFilter(absoluteBand, 0, 0);
+    }
+
+    public static PortFilter relativeDeadBand(double relativeBand) {
+        return new PortFilter(0, relativeBand, 0);
+    }
+
+    public static PortFilter minInterval(long minIntervalMillis) {
+        return new PortFilter(0, 0, minIntervalMillis);
+    }
+
+    public double getAbsoluteBand() {
+        return absoluteBand;
+    }
+
+    public double getRelativeBand() {
+        return relativeBand;
+    }
+
+    public long getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    // Whether value is inside the dead band around current, null when the port has no value
+    boolean inDeadBand(Double current, Double value) {
+        if (current == null || value == null) {
+            return false;
+        }
+        double band = Math.max(absoluteBand, relativeBand * Math.abs(current));
+        return Math.abs(value - current) < band;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PortFilter(absolute=%s, relative=%s, interval=%dms)", absoluteBand, relativeBand, minIntervalMillis);
+    }
+}
@@ -0,0 +1,61 @@
+package RobotData;
+
+/**
+ * Filter of every slot, compiled from the filters set by board and port name for one schema generation.
+ */
+final class PortFilters {
+
+    final long generation;
+    // Filter by slot, null for slots that are not filtered
+    private final PortFilter[] filters;
+    // Time the last value of every slot was kept, written under the board lock of the slot
+    private final long[] lastKept;
+    // Epoch of every slot when the filters were built, see SensorStore.epoch
+    private final int[] epochs;
+
+    /**
+     * @param previous filters of an earlier generation whose times are kept for the ports still in the
+     * same slot, a slot released and reused since holds another port that starts without a time
+     */
+    PortFilters(long generation, PortFilter[] filters, PortFilters previous, SensorStore store) {
+        this.generation = generation;
+        this.filters = filters;
+        lastKept = new long[filters.length];
+        epochs = new int[filters.length];
+        for (int slot = 0; slot < filters.length; slot++) {
+            epochs[slot] = store.epoch(slot);
+            if (previous != null && slot < previous.epochs.length && previous.epochs[slot] == epochs[slot]) {
+                lastKept[slot] = previous.lastKept[slot];
+            }
+        }
+    }
+
+    /**
+     * Whether to set value to slot, recording the time if it is kept.
+     * Caller holds the write lock of the slot board.
+     * @param current value of the slot, null if it has none
+     */
+    boolean keep(int slot, Double current, Double value) {
+        if (!wouldKeep(slot, current, value)) {
+            return false;
+        }
+        PortFilter filter = slot < filters.length ? filters[slot] : null;
+        if (filter != null && filter.getMinIntervalMillis() > 0) {
+            lastKept[slot] = System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    // Whether value would be kept now, without recording it
+    boolean wouldKeep(int slot, Double current, Double value) {
+        PortFilter filter = slot < filters.length ? filters[slot] : null;
+        if (filter == null) {
+            return true;
+        }
+        if (filter.inDeadBand(current, value)) {
+            return false;
+        }
+        return filter.getMinIntervalMillis() == 0
+                || System.currentTimeMillis() - lastKept[slot] >= filter.getMinIntervalMillis();
+    }
+}
@@ -0,0 +1,128 @@
+package RobotData;
+
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Direct access to the value of one port, resolved once by
+ * {@link RobotSensorsData#getPortHandle(String, String, String)}.
+ * Reads and writes go straight to the port slot without hashing names or boxing values.
+ * A handle stops working once its port is removed or the robot data is cleared,
+ * every access after that throws {@link IllegalStateException}.
+ * Values set through a handle are part of the next published snapshot,
+ * see {@link RobotSensorsData#publishSnapshot()}.
+ * Handles may be shared between threads, they only lock the board of their port while setting it.
+ * Every value set that changes the port is reported to port listeners as an update of its own.
+ */
+@SuppressWarnings("unused")
+public final class PortHandle {
+
+    private final RobotSensorsData owner;
+    private final SensorStore store;
+    private final int slot;
+    private final int epoch;
+    private final StampedLock boardLock;
+    // Schema generation the handle was last checked against
+    private volatile long generation;
+    private final String boardName;
+    private final String index;
+    private final String port;
+
+    PortHandle(RobotSensorsData owner, SensorStore store, int slot) {
+        this.owner = owner;
+        this.store = store;
+        this.slot = slot;
+        epoch = store.epoch(slot);
+        boardLock = store.boardLock(store.slotBoard(slot));
+        generation = store.generation();
+        boardName = store.boardName(slot);
+        index = store.indexName(slot);
+        port = store.portName(slot);
+    }
+
+    /**
+     * @return false if the port was removed since the handle was resolved
+     */
+    public boolean isValid() {
+        long currentGeneration = store.generation();
+        if (currentGeneration == generation) {
+            return true;
+        }
+        if (store.epoch(slot) != epoch) {
+            return false;
+        }
+        generation = currentGeneration;
+        return true;
+    }
+
+    /**
+     * @return true if the port received a value
+     */
+    public boolean isPresent() {
+        checkValid();
+        return store.isPresent(slot);
+    }
+
+    /**
+     * @return value of the port, NaN if it has no value yet
+     */
+    public double getDouble() {
+        double value = store.get(slot, Double.NaN);
+        checkValid(); // Checked after reading, a slot reused meanwhile changes its epoch
+        return value;
+    }
+
+    /**
+     * @return time the port last received a value, see {@link RobotSensorsData#getReceiveTime(String, String, String)}
+     */
+    public long getReceiveTime() {
+        long time = store.receiveTime(slot);
+        checkValid();
+        return time;
+    }
+
+    public void set(double value) {
+        Double oldValue;
+        long stamp = boardLock.writeLock();
+        try {
+            if (store.epoch(slot) != epoch) { // Slots are released under the board lock
+                throw removed();
+            }
+            oldValue = store.currentValue(slot);
+            store.set(slot, value);
+        } finally {
+            boardLock.unlockWrite(stamp);
+        }
+        owner.markUpdated();
+        if (owner.hasPortListeners() && (oldValue == null || Double.compare(oldValue, value) != 0)) {
+            owner.notifyListeners(List.of(new PortChange(boardName, index, port, oldValue, value)));
+        }
+    }
+
+    public String getBoardName() {
+        return boardName;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    private void checkValid() {
+        if (!isValid()) {
+            throw removed();
+        }
+    }
+
+    private IllegalStateException removed() {
+        return new IllegalStateException(String.format("Port %s of board %s %s was removed", port, boardName, index));
+    }
+
+    @Override
+    public String toString() {
+        return boardName + "/" + index + "/" + port;
+    }
+}
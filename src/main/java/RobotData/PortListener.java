@@ -0,0 +1,16 @@
+package RobotData;
+
+import java.util.List;
+
+/**
+ * Receives the port values changed by one update, see
+ * {@link RobotSensorsData#addPortListener(String, String, String, PortListener)}.
+ */
+@FunctionalInterface
+public interface PortListener {
+
+    /**
+     * @param changes values changed by one update that match the listener, in the order they were applied
+     */
+    void portsChanged(List<PortChange> changes);
+}
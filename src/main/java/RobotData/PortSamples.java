@@ -0,0 +1,55 @@
+package RobotData;
+
+import java.util.Arrays;
+
+/**
+ * Samples of one port taken from its history, oldest first.
+ * Timestamps are milliseconds since the epoch.
+ */
+@SuppressWarnings("unused")
+public final class PortSamples {
+
+    static final PortSamples EMPTY = new PortSamples(new long[0], new double[0], 0);
+
+    private final long[] timestamps;
+    private final double[] values;
+    private final int size;
+
+    PortSamples(long[] timestamps, double[] values, int size) {
+        this.timestamps = timestamps;
+        this.values = values;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTimestamp(int i) {
+        checkIndex(i);
+        return timestamps[i];
+    }
+
+    public double getValue(int i) {
+        checkIndex(i);
+        return values[i];
+    }
+
+    public long[] getTimestamps() {
+        return Arrays.copyOf(timestamps, size);
+    }
+
+    public double[] getValues() {
+        return Arrays.copyOf(values, size);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Sample " + i + " of " + size);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package RobotData;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParser;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sensor data of many robots by robot id.
+ * Robots are spread over shards by id, updates of many robots are applied shard by shard in parallel.
+ * Robots registered with the same nicknames and ports share them, so memory grows with the number of
+ * distinct configurations rather than with the number of robots. A robot whose ports or nicknames are
+ * changed afterwards gets its own copy of them. Configurations are told apart by their parsed json,
+ * so whitespace and the order of keys do not matter, and are dropped once no robot registered with them is left.
+ */
+@SuppressWarnings("unused")
+public final class RobotRegistry {
+
+    private final Logger logger = Logger.getLogger("Robot Registry");
+    private final List<Map<String, RobotSensorsData>> shards;
+    private final Executor executor;
+    //    parsed nicknames and ports -> robot data all robots of the configuration share the schema of
+    private final Map<ConfigurationKey, Configuration> configurations = new ConcurrentHashMap<>();
+    //    robot id -> configuration the robot was registered with
+    private final Map<String, ConfigurationKey> robotConfigurations = new ConcurrentHashMap<>();
+
+    // One shard per processor, updates are applied on the common fork join pool
+    public RobotRegistry() {
+        this(Runtime.getRuntime().availableProcessors(), ForkJoinPool.commonPool());
+    }
+
+    public RobotRegistry(int shards, Executor executor) {
+        if (shards <= 0) {
+            String errorMessage = String.format("Registry needs at least one shard, got %d", shards);
+            logger.log(Level.SEVERE, errorMessage);
+            throw new IllegalArgumentException(errorMessage);
+        }
+        List<Map<String, RobotSensorsData>> shardList = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            shardList.add(new ConcurrentHashMap<>());
+        }
+        this.shards = Collections.unmodifiableList(shardList);
+        this.executor = executor;
+    }
+
+    /**
+     * Register a robot with the nicknames of buildNicknameMaps and the ports of addToBoardsMap,
+     * either json may be null. Robots registered with the same json share nicknames and ports.
+     * @return sensor data of the new robot
+     * @throws IllegalArgumentException if a robot with the id is already registered
+     */
+    public RobotSensorsData register(String robotId, String nicknamesJson, String boardsJson) throws IllegalArgumentException {
+        ConfigurationKey key = new ConfigurationKey(parse(nicknamesJson), parse(boardsJson));
+        Configuration configuration = acquire(key);
+        while (configuration == null) { // Built outside the map, the robot data of a racing register may win
+            Configuration built = new Configuration(configure(nicknamesJson, boardsJson));
+            built.robots = 1;
+            configuration = configurations.putIfAbsent(key, built) == null ? built : acquire(key);
+        }
+        // The configuration of the robot is known before the robot is, so remove always finds it
+        if (robotConfigurations.putIfAbsent(robotId, key) != null) {
+            release(key);
+            String errorMessage = String.format("Robot %s is already registered", robotId);
+            logger.log(Level.SEVERE, errorMessage);
+            throw new IllegalArgumentException(errorMessage);
+        }
+        RobotSensorsData robotSensorsData = configuration.robotSensorsData.withSharedSchema();
+        shard(robotId).put(robotId, robotSensorsData);
+        return robotSensorsData;
+    }
+
+    private static JsonElement parse(String json) {
+        return json == null ? JsonNull.INSTANCE : new JsonParser().parse(json);
+    }
+
+    // One robot more is registered with the configuration, null if there is no such configuration
+    private Configuration acquire(ConfigurationKey key) {
+        return configurations.computeIfPresent(key, (k, configuration) -> {
+            configuration.robots++;
+            return configuration;
+        });
+    }
+
+    // One robot less is registered with the configuration, dropping it when none is left
+    private void release(ConfigurationKey key) {
+        configurations.computeIfPresent(key, (k, configuration) -> --configuration.robots == 0 ? null : configuration);
+    }
+
+    // Robot data of the configuration, never changed after it is built
+    private static RobotSensorsData configure(String nicknamesJson, String boardsJson) {
+        RobotSensorsData configuration = new RobotSensorsData();
+        if (nicknamesJson != null) {
+            configuration.buildNicknameMaps(nicknamesJson);
+        }
+        if (boardsJson != null) {
+            configuration.addToBoardsMap(boardsJson);
+        }
+        return configuration;
+    }
+
+    // Returns null if no robot with the id is registered
+    public RobotSensorsData get(String robotId) {
+        return shard(robotId).get(robotId);
+    }
+
+    // Returns the robot removed, null if no robot with the id was registered
+    public RobotSensorsData remove(String robotId) {
+        RobotSensorsData robotSensorsData = shard(robotId).remove(robotId);
+        ConfigurationKey key = robotSensorsData == null ? null : robotConfigurations.remove(robotId); // Never null then
+        if (key != null) {
+            release(key);
+        }
+        return robotSensorsData;
+    }
+
+    public Set<String> getRobotIds() {
+        Set<String> robotIds = new HashSet<>();
+        shards.forEach(shard -> robotIds.addAll(shard.keySet()));
+        return Collections.unmodifiableSet(robotIds);
+    }
+
+    public int size() {
+        return shards.stream().mapToInt(Map::size).sum();
+    }
+
+    // Number of distinct nicknames and ports the registered robots were configured with
+    public int getConfigurationCount() {
+        return configurations.size();
+    }
+
+    /**
+     * Apply an update to the robot with the id, see {@link RobotSensorsData#updateBoardMapValues(String)}.
+     * @return false if no robot with the id is registered
+     */
+    public boolean update(String robotId, String json) {
+        RobotSensorsData robotSensorsData = get(robotId);
+        if (robotSensorsData == null) {
+            return false;
+        }
+        robotSensorsData.updateBoardMapValues(json);
+        return true;
+    }
+
+    /**
+     * Apply the updates of many robots, robot id -> updates in the order they were received.
+     * Shards are updated in parallel, the updates of one robot are coalesced into one,
+     * see {@link RobotSensorsData#updateBoardMapValues(List)}. Updates of unknown robots are ignored.
+     * Returns once all updates were applied. If some fail, the others are still applied
+     * and the first failure is thrown with the rest suppressed.
+     */
+    public void updateAll(Map<String, ? extends List<String>> updates) {
+        List<List<Map.Entry<String, ? extends List<String>>>> byShard = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            byShard.add(new ArrayList<>());
+        }
+        updates.entrySet().forEach(update -> byShard.get(shardIndex(update.getKey())).add(update));
+
+        List<CompletableFuture<List<RuntimeException>>> futures = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            Map<String, RobotSensorsData> shard = shards.get(i);
+            List<Map.Entry<String, ? extends List<String>>> shardUpdates = byShard.get(i);
+            if (!shardUpdates.isEmpty()) {
+                futures.add(CompletableFuture.supplyAsync(() -> updateShard(shard, shardUpdates), executor));
+            }
+        }
+        RuntimeException failure = null;
+        for (CompletableFuture<List<RuntimeException>> future : futures) {
+            for (RuntimeException e : future.join()) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private List<RuntimeException> updateShard(Map<String, RobotSensorsData> shard,
+                                               List<Map.Entry<String, ? extends List<String>>> updates) {
+        List<RuntimeException> failures = new ArrayList<>();
+        for (Map.Entry<String, ? extends List<String>> update : updates) {
+            RobotSensorsData robotSensorsData = shard.get(update.getKey());
+            if (robotSensorsData == null || update.getValue().isEmpty()) {
+                continue;
+            }
+            try {
+                robotSensorsData.updateBoardMapValues(update.getValue());
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Could not update robot " + update.getKey(), e);
+                failures.add(e);
+            }
+        }
+        return failures;
+    }
+
+    private Map<String, RobotSensorsData> shard(String robotId) {
+        return shards.get(shardIndex(robotId));
+    }
+
+    private int shardIndex(String robotId) {
+        int hash = robotId.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.size());
+    }
+
+    // Parsed json compares objects regardless of the order of their keys
+    private static final class ConfigurationKey {
+        private final JsonElement nicknames;
+        private final JsonElement boards;
+
+        private ConfigurationKey(JsonElement nicknames, JsonElement boards) {
+            this.nicknames = nicknames;
+            this.boards = boards;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConfigurationKey)) {
+                return false;
+            }
+            ConfigurationKey other = (ConfigurationKey) o;
+            return nicknames.equals(other.nicknames) && boards.equals(other.boards);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * nicknames.hashCode() + boards.hashCode();
+        }
+    }
+
+    // Robot data of a configuration and the number of robots registered with it,
+    // changed only inside compute or before the configuration is put in the map
+    private static final class Configuration {
+        private final RobotSensorsData robotSensorsData;
+        private int robots;
+
+        private Configuration(RobotSensorsData robotSensorsData) {
+            this.robotSensorsData = robotSensorsData;
+        }
+    }
+}
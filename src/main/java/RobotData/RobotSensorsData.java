@@ -2,49 +2,168 @@ package RobotData;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.internal.LinkedTreeMap;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+/**
+ * Sensor values of a robot, safe to use from many threads at once.
+ * <ul>
+ * <li>Values are updated atomically per board: a reader sees either none or all of the
+ * values one {@link #updateBoardMapValues(String)} gave a board, across boards an update
+ * is not atomic.</li>
+ * <li>Updates of different boards do not wait for each other and readers never block
+ * writers, reads of a board being written are retried or wait only for that board.</li>
+ * <li>Adding, removing or renaming ports, {@link #clear()} and full deltas hold the schema
+ * lock exclusively, updates and reads that look up names wait for them.</li>
+ * <li>{@link #snapshot()} never blocks. A snapshot is published after every change,
+ * by the changing thread or by another thread publishing at the same time, in which case
+ * the change is visible in a later snapshot once that thread finishes. Values set through a
+ * {@link PortHandle} or {@link #decodeValues(ByteBuffer)} are not published by the call,
+ * they are part of the next snapshot published for any reason.
+ * {@link #publishSnapshot()} waits until the changes made so far are published.</li>
+ * <li>{@link #toDeltaJson()} and {@link #applyDeltaJson(String)} are each serialized,
+ * a value written while a delta is taken is in that delta or the next one.</li>
+ * </ul>
+ */
 @SuppressWarnings({"unused", "WeakerAccess"})
-
 public class RobotSensorsData implements Cloneable {
 
     private final Logger logger = Logger.getLogger("Robot Sensor Data");
-    //    board name -> board index -> ports -> values
-    Map<String, Map<String, Map<String, Double>>> portsMap = new HashMap<>();
+    // Values of all ports, each (board, index, port) owns a slot in the store
+    private final SensorStore store;
+    //    board name -> board index -> ports -> values, read-only view over the store
+    Map<String, Map<String, Map<String, Double>>> portsMap;
     //    board name -> board index -> board nickname
     final Map<String, Map<String, String>> boardNicknamesMap = new HashMap<>();
     //    board name -> board index -> board ports -> board nicknames
     final Map<String, Map<String, Map<String, String>>> portNicknamesMap = new HashMap<>();
-    private boolean updated;
+    // Both nickname maps compiled for lookups in both directions
+    private volatile NicknameIndex nicknames = NicknameIndex.EMPTY;
+    private volatile boolean updated;
+    // Latest published state, replaced after every change so readers never lock
+    private volatile SensorSnapshot snapshot = SensorSnapshot.EMPTY;
+    // Held while building a snapshot, publish requests that find it taken are left to its holder
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private final AtomicInteger publishRequests = new AtomicInteger();
+    private final List<PortSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    // Runs listener callbacks, by default on the thread that made the change
+    private volatile Executor listenerExecutor = Runnable::run;
+    // Wire ids of the ports for the binary format, rebuilt when ports change
+    private volatile WireLayout wireLayout;
+    // Checkpoint and journal of the values, handed every published snapshot, null when not persisted
+    private volatile SensorPersistence persistence;
+    //    board name -> filter of its ports without a filter of their own
+    private final Map<String, PortFilter> boardFilters = new HashMap<>();
+    //    board name -> board index -> port -> filter, by real index and port names
+    private final Map<String, Map<String, Map<String, PortFilter>>> portFilters = new HashMap<>();
+    // Filters by slot, rebuilt when ports change, null while no filter is set
+    private final AtomicReference<PortFilters> filters = new AtomicReference<>();
+    // Receives updates, adds and removes before they are applied, null while not recording
+    private volatile SensorCallRecorder callRecorder;
+    // Applies large updates board by board on a pool, null while updates are applied on the calling thread
+    private volatile ParallelUpdates parallelUpdates;
+    // Counters and latencies of the hot paths, null while metrics are off
+    private volatile SensorMetrics metrics;
+    private ObjectName metricsName;
+    // Sequence of the next delta written by toDeltaJson
+    private long deltaSequence;
+    private boolean fullDeltaRequested;
+    // Sequence of the last delta read by applyDeltaJson
+    private long appliedDeltaSequence = -1;
 
-    public synchronized RobotSensorsData deepCopy() {
-        RobotSensorsData robotSensorsData = new RobotSensorsData();
-        robotSensorsData.portsMap = new HashMap<>();
-        this.portsMap.forEach((boardName, mappedValue) ->
-        {
-            Map<String, Map<String, Double>> mapForBoard = new HashMap<>();
-            mappedValue.forEach((index, currentPortsMap) ->
-            {
-                Map<String, Double> mapForIndexes = new HashMap<>();
-                currentPortsMap.forEach(mapForIndexes::put);
-                mapForBoard.put(index, mapForIndexes);
-            });
-            robotSensorsData.portsMap.put(boardName, mapForBoard);
-        });
+    public RobotSensorsData() {
+        this(new SensorStore());
+    }
+
+    private RobotSensorsData(SensorStore store) {
+        this.store = store;
+        this.portsMap = store.view();
+    }
+
+    // Mutable copy of the latest snapshot, prefer snapshot() when only reading
+    public RobotSensorsData deepCopy() {
+        SensorStore copy = new SensorStore();
+        snapshot.copyInto(copy);
+        RobotSensorsData robotSensorsData = new RobotSensorsData(copy);
+        robotSensorsData.publish();
         return robotSensorsData;
     }
 
-    public synchronized boolean isUpdated() {
+    // Robot data with the ports and nicknames of this one and no values. Both share their ports and nicknames,
+    // whichever changes its own ports first copies them.
+    RobotSensorsData withSharedSchema() {
+        SensorStore store;
+        Lock schemaLock = this.store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            store = new SensorStore(this.store.shareSchema());
+        } finally {
+            schemaLock.unlock();
+        }
+        RobotSensorsData robotSensorsData = new RobotSensorsData(store);
+        robotSensorsData.boardNicknamesMap.putAll(boardNicknamesMap); // Nicknames of a board are replaced, never changed
+        robotSensorsData.portNicknamesMap.putAll(portNicknamesMap);
+        robotSensorsData.nicknames = nicknames;
+        robotSensorsData.publish();
+        return robotSensorsData;
+    }
+
+    // Consistent view of all values as of the last completed update, add, remove or clear
+    public SensorSnapshot snapshot() {
+        return snapshot;
+    }
+
+    public boolean isUpdated() {
         return updated;
     }
 
+    // Changes whenever ports, indexes or nicknames are added or removed
+    public long getSchemaGeneration() {
+        return store.generation();
+    }
+
     public void buildNicknameMaps(String json) throws IllegalArgumentException {
         Gson gson = new Gson();
         Map<?, ?> element = gson.fromJson(json, Map.class); // json String to Map
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            buildNicknameMaps(element);
+        } finally {
+            schemaLock.unlock();
+        }
+        publish();
+    }
+
+    private void buildNicknameMaps(Map<?, ?> element) {
         for (Object boardNameKey : element.keySet()) { // Iterate over board types
             String boardName = (String) boardNameKey;
             Map<String, String> indexNicknames = new HashMap<>();
@@ -100,308 +219,978 @@ public class RobotSensorsData implements Cloneable {
             boardNicknamesMap.put(boardName, indexNicknames);
             portNicknamesMap.put(boardName, indexToPortsNicknames);
         }
+        nicknames = NicknameIndex.of(boardNicknamesMap, portNicknamesMap);
+        for (Object boardNameKey : element.keySet()) { // Only boards given new nicknames need new aliases
+            addNicknamesToPortsMap((String) boardNameKey);
+        }
     }
 
     public String replaceNicksInJson(String json) {
-        Map<String, Map<String, Object>> newJson = new HashMap<>();
-        Gson gson = new Gson();
-        Map<?, ?> element = gson.fromJson(json, Map.class); // json String to Map
+        StringWriter out = new StringWriter(json.length());
+        try {
+            replaceNicksInJson(new StringReader(json), out);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        return out.toString();
+    }
 
-        for (Object key : element.keySet()) { // Iterate over board types
-            String boardType = (String) key;
-            newJson.put(boardType, new HashMap<>()); // Add board name to map
-            Object value = element.get(key);
+    // Write replaceNicksInJson(json) as UTF-8 to out, e.g. a ByteArrayOutputStream reused for every command.
+    // out is flushed but left open.
+    public void replaceNicksInJson(String json, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        replaceNicksInJson(new StringReader(json), writer);
+        writer.flush();
+    }
 
-            // Check if board contains map of boards or list of ports
-            // board in json might have mapping of a number of boards of its type
-            // or list of ports that will be treated as if there's only one board of this type
-            if (value instanceof ArrayList) { // If board has list of ports.
+    // Rewrite nicknames to real names token by token, without building a tree of the command.
+    // Names and values keep the order they are given in, values are written as Gson writes them from a map.
+    private void replaceNicksInJson(Reader json, Writer out) throws IOException {
+        JsonReader reader = new JsonReader(json);
+        reader.setLenient(true);
+        JsonWriter writer = new JsonWriter(out);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        try {
+            reader.beginObject();
+            writer.beginObject();
+            while (reader.hasNext()) { // Iterate over board types
+                String boardType = reader.nextName();
+                writer.name(boardType).beginObject();
 
-                @SuppressWarnings("unchecked")
-                ArrayList<String> ports = (ArrayList<String>) value;
-                ArrayList<String> portsArray = new ArrayList<>();
-                Map<String, String> portsNicksMap = portNicknamesMap.get(boardType).get("1");
-                ports.forEach(port -> portsArray.add(
-                        portsNicksMap.containsValue(port) ?
-                                getKeyByValue(portsNicksMap, port) : port));
+                // Check if board contains map of boards or list of ports
+                // board in json might have mapping of a number of boards of its type
+                // or list of ports that will be treated as if there's only one board of this type
+                JsonToken token = reader.peek();
+                if (token == JsonToken.BEGIN_ARRAY) { // If board has list of ports.
+                    writer.name("1"); // Index of the first board of this type is 1
+                    replacePortList(reader, writer, boardType, "1");
+                } else if (token == JsonToken.BEGIN_OBJECT) { // If board has map boards of this type
+                    replaceBoardMap(reader, writer, boardType);
+                } else {
+                    reader.skipValue();
+                }
+                writer.endObject();
+            }
+            reader.endObject();
+            writer.endObject();
+            writer.flush();
+        } catch (MalformedJsonException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    // Board given as a map of its indexes to lists or maps of ports, or as a map of the ports of its first board.
+    // The first value tells which.
+    private void replaceBoardMap(JsonReader reader, JsonWriter writer, String boardType) throws IOException {
+        reader.beginObject();
+        if (!reader.hasNext()) {
+            reader.endObject();
+            return;
+        }
+        String name = reader.nextName();
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BEGIN_ARRAY || token == JsonToken.BEGIN_OBJECT) { // Map of boards to ports
+            replaceIndex(reader, writer, boardType, name);
+            while (reader.hasNext()) {
+                replaceIndex(reader, writer, boardType, reader.nextName());
+            }
+            reader.endObject();
+        } else {
+            writer.name("1").beginObject(); // Index of the first board of this type is 1
+            writer.name(realPortName(boardType, "1", name));
+            copyValue(reader, writer);
+            replacePortMap(reader, writer, boardType, "1");
+        }
+    }
 
-                newJson.get(boardType).put("1", portsArray); // Index of the first board of this type is 1
+    private void replaceIndex(JsonReader reader, JsonWriter writer, String boardType, String index) throws IOException {
+        String boardIndex = realIndexName(boardType, index);
+        writer.name(boardIndex);
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            replacePortList(reader, writer, boardType, boardIndex);
+        } else {
+            reader.beginObject();
+            writer.beginObject();
+            replacePortMap(reader, writer, boardType, boardIndex);
+        }
+    }
 
-            } else if (value instanceof LinkedTreeMap) { // If board has map boards of this type
-                @SuppressWarnings("unchecked")
-                LinkedTreeMap<Object, Object> valueObject = (LinkedTreeMap<Object, Object>) value; // Map of boards to ports list
-                Optional<Object> firstValue = valueObject.values().stream().findFirst();
-                if (firstValue.isEmpty()){
+    private void replacePortList(JsonReader reader, JsonWriter writer, String boardType, String boardIndex) throws IOException {
+        reader.beginArray();
+        writer.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                writer.nullValue();
+            } else {
+                writer.value(realPortName(boardType, boardIndex, reader.nextString()));
+            }
+        }
+        reader.endArray();
+        writer.endArray();
+    }
+
+    // Rest of a map of ports to data, closing it in both reader and writer
+    private void replacePortMap(JsonReader reader, JsonWriter writer, String boardType, String boardIndex) throws IOException {
+        while (reader.hasNext()) {
+            writer.name(realPortName(boardType, boardIndex, reader.nextName()));
+            copyValue(reader, writer);
+        }
+        reader.endObject();
+        writer.endObject();
+    }
+
+    // Copy one value as Gson reads it into a map, numbers become doubles
+    private static void copyValue(JsonReader reader, JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copyValue(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                writer.value(reader.nextDouble());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            default:
+                reader.nextNull();
+                writer.nullValue();
+        }
+    }
+
+    public String toJson() {
+        return toJson(true);
+    }
+
+    // With nicknames every port appears again under the nicknames of its board and its own,
+    // without them only under its board index and port name
+    public String toJson(boolean withNicknames) {
+        StringWriter out = new StringWriter();
+        try {
+            toJson(withNicknames, out);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        return out.toString();
+    }
+
+    // Write toJson(withNicknames) as UTF-8 to out, e.g. a ByteArrayOutputStream reused for every message.
+    // out is flushed but left open. A new UTF-8 writer over out is made for every call,
+    // callers writing many messages to the same stream can keep one and use toJson(boolean, Writer).
+    public void toJson(boolean withNicknames, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        toJson(withNicknames, writer);
+        writer.flush();
+    }
+
+    // Write toJson(withNicknames) to out, which is left open
+    public void toJson(boolean withNicknames, Writer out) throws IOException {
+        SensorMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        updated = false;
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            if (withNicknames) {
+                new GsonBuilder().create().toJson(portsMap, out);
+                return;
+            }
+            JsonWriter writer = new JsonWriter(out);
+            writeValues(writer, store.schema(), false);
+            writer.flush();
+        } finally {
+            schemaLock.unlock();
+            if (metrics != null) {
+                metrics.toJsonLatency.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    // Serialize only the ports whose value changed since the last delta:
+    // {"Sequence": n, "Full": false, "Values": {board name: {board index: {port: value}}}}
+    // The first delta, and the first one after ports were added or removed, holds all ports.
+    public synchronized String toDeltaJson() {
+        updated = false;
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            boolean full = fullDeltaRequested || store.isSchemaDirty();
+            if (full) {
+                store.clearDirty(); // Values written from here on are in this delta or the next
+            }
+            StringWriter out = new StringWriter();
+            try (JsonWriter writer = new JsonWriter(out)) {
+                writer.beginObject();
+                writer.name("Sequence").value(deltaSequence++);
+                writer.name("Full").value(full);
+                writer.name("Values");
+                writeValues(writer, full ? store.schema() : dirtyPorts(), true);
+                writer.endObject();
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            }
+            fullDeltaRequested = false;
+            return out.toString();
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    // Make the next toDeltaJson hold all ports, e.g. when a receiver missed a delta
+    public synchronized void requestFullDelta() {
+        fullDeltaRequested = true;
+    }
+
+    // Apply a delta written by toDeltaJson, registering ports that do not exist yet.
+    // Returns false if the delta was skipped because a previous one is missing,
+    // values are applied again from the next full delta.
+    public synchronized boolean applyDeltaJson(String json) {
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            return applyDeltaJson(reader);
+        } catch (MalformedJsonException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        } finally {
+            schemaLock.unlock();
+            publish();
+        }
+    }
+
+    private boolean applyDeltaJson(JsonReader reader) throws IOException {
+        long sequence = -1;
+        boolean full = false;
+        boolean applied = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "Sequence":
+                    sequence = reader.nextLong();
+                    break;
+                case "Full":
+                    full = reader.nextBoolean();
+                    break;
+                case "Values":
+                    if (!full && sequence != appliedDeltaSequence + 1) {
+                        reader.skipValue();
+                        break;
+                    }
+                    if (full) {
+                        store.clear();
+                    }
+                    readDeltaValues(reader);
+                    applied = true;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (applied) {
+            appliedDeltaSequence = sequence;
+            updated = true;
+        }
+        return applied;
+    }
+
+    private void readDeltaValues(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) { // Iterate over board types
+            String boardName = reader.nextName();
+            reader.beginObject();
+            while (reader.hasNext()) { // Iterate over board indexes
+                String boardIndex = reader.nextName();
+                registerIndex(boardName, boardIndex);
+                reader.beginObject();
+                while (reader.hasNext()) { // Iterate over ports
+                    String port = reader.nextName();
+                    store.setValue(registerPort(boardName, boardIndex, port), nextValue(reader));
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+    }
+
+    //    board name -> board index -> ports -> slots, of the slots changed since the last delta,
+    // which are no longer marked changed
+    private Map<String, Map<String, Map<String, Integer>>> dirtyPorts() {
+        Map<String, Map<String, Map<String, Integer>>> dirtyPorts = new LinkedHashMap<>();
+        AtomicBitSet dirty = store.dirtySlots();
+        for (int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1)) {
+            if (!dirty.getAndClear(slot)) {
+                continue;
+            }
+            dirtyPorts.computeIfAbsent(store.boardName(slot), board -> new LinkedHashMap<>())
+                    .computeIfAbsent(store.indexName(slot), index -> new LinkedHashMap<>())
+                    .put(store.portName(slot), slot);
+        }
+        return dirtyPorts;
+    }
+
+    // Write values of the ports in slots, skipping nickname aliases.
+    // Ports without a value are written as null if withAbsent, otherwise left out.
+    private void writeValues(JsonWriter writer, Map<String, Map<String, Map<String, Integer>>> slots,
+                             boolean withAbsent) throws IOException {
+        writer.beginObject();
+        for (Map.Entry<String, Map<String, Map<String, Integer>>> board : slots.entrySet()) {
+            writer.name(board.getKey()).beginObject();
+            for (Map.Entry<String, Map<String, Integer>> index : board.getValue().entrySet()) {
+                if (store.isIndexAlias(board.getKey(), index.getKey())) {
                     continue;
                 }
-                Object realFirstValue = firstValue.get();
-                if (realFirstValue instanceof  ArrayList){
-                    @SuppressWarnings("unchecked")
-                    Map<String, List<String>> valueMapped = (Map<String, List<String>>) value; // Map of boards to ports list
-                    for (Map.Entry<String, List<String>> intAndList : valueMapped.entrySet()) {
-
-                        ArrayList<String> portList = new ArrayList<>(intAndList.getValue());
-                        String boardIndex = boardNicknamesMap
-                                .get(boardType)
-                                .containsValue(intAndList.getKey()) ?
-                                getKeyByValue(boardNicknamesMap.get(boardType), intAndList.getKey())
-                                : intAndList.getKey();
-
-                        ArrayList<String> portsArray = new ArrayList<>();
-                        Map<String, String> portsNicksMap = portNicknamesMap.get(boardType).get(boardIndex);
-                        portList.forEach(port -> portsArray.add(
-                                portsNicksMap.containsValue(port) ?
-                                        getKeyByValue(portsNicksMap, port) : port));
-                        newJson.get(boardType).put(boardIndex, portsArray);
+                writer.name(index.getKey()).beginObject();
+                for (Map.Entry<String, Integer> port : index.getValue().entrySet()) {
+                    int slot = port.getValue();
+                    Double value = store.getValue(slot);
+                    if (!store.isPortName(port.getKey(), slot) || !withAbsent && value == null) {
+                        continue;
                     }
-                } else if (realFirstValue instanceof LinkedTreeMap){
-                    @SuppressWarnings("unchecked")
-                    Map<String, Map<String, Object>> valueMapped = (Map<String, Map<String, Object>>) value; // Map of boards to ports list
-                    for (Map.Entry<String, Map<String, Object>> intAndMap : valueMapped.entrySet()) {
-
-                        String boardIndex = boardNicknamesMap
-                                .get(boardType)
-                                .containsValue(intAndMap.getKey()) ?
-                                getKeyByValue(boardNicknamesMap.get(boardType), intAndMap.getKey())
-                                : intAndMap.getKey();
-
-                        Map<String, Object> newPortMap = new HashMap<>();
-                        Map<String, String> portsNicksMap = portNicknamesMap.get(boardType).get(boardIndex);
-                        intAndMap.getValue().forEach((port, data) -> newPortMap.put(
-                                portsNicksMap.containsValue(port) ?
-                                        getKeyByValue(portsNicksMap, port) : port, data));
-                        newJson.get(boardType).put(boardIndex, newPortMap);
+                    writer.name(port.getKey());
+                    if (value != null) {
+                        writer.value(value.doubleValue());
+                    } else {
+                        writer.nullValue();
                     }
-                } else {
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> ports = (Map<String, Object>) value;
-                    Map<String, Object> newPortMap = new HashMap<>();
-                    Map<String, String> portsNicksMap = portNicknamesMap.get(boardType).get("1");
-                    ports.forEach((port, data) -> newPortMap.put(
-                            portsNicksMap.containsValue(port) ?
-                                    getKeyByValue(portsNicksMap, port) : port, data));
-
-                    newJson.get(boardType).put("1", newPortMap); // Index of the first board of this type is 1
                 }
+                writer.endObject();
             }
+            writer.endObject();
         }
-        return new GsonBuilder().create().toJson(newJson);
+        writer.endObject();
     }
 
-    public String toJson() {
-        updated = false;
-        return new GsonBuilder().create().toJson(portsMap);
+    // Version of the ports in the binary format, messages are only decoded by robot data
+    // with the same real boards, indexes and ports
+    public long getWireSchemaVersion() {
+        return readWireLayout().schemaVersion;
+    }
+
+    // Bytes encodeValues writes
+    public int getWireMessageSize() {
+        return readWireLayout().messageBytes();
+    }
+
+    // Write all values in the binary format at the position of buffer, returning the bytes written.
+    // Nothing is allocated unless the ports changed since the last message.
+    public int encodeValues(ByteBuffer buffer) {
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            return wireLayout().encode(store, buffer);
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    // Apply a message written by encodeValues at the position of buffer, like updateBoardMapValues.
+    // Returns false if the message was written for other ports, it is skipped.
+    // Like values set through port handles, the values are part of the next publishSnapshot, so decoding
+    // allocates nothing per message. Only while port listeners are subscribed the changes are collected for them.
+    public boolean decodeValues(ByteBuffer buffer) {
+        List<PortChange> changes = subscriptions.isEmpty() ? null : new ArrayList<>();
+        boolean applied = false;
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            applied = wireLayout().decode(store, buffer, changes);
+            return applied;
+        } finally {
+            schemaLock.unlock();
+            if (applied) {
+                updated = true;
+                notifyListeners(changes);
+            }
+        }
+    }
+
+    private WireLayout readWireLayout() {
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            return wireLayout();
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    // Caller holds the schema read lock
+    private WireLayout wireLayout() {
+        WireLayout layout = wireLayout;
+        if (layout == null || layout.generation != store.generation()) {
+            layout = WireLayout.of(store);
+            wireLayout = layout;
+        }
+        return layout;
     }
 
     public void updateBoardMapValues(String json) {
-        Gson gson = new Gson();
-        Map<?, ?> element = gson.fromJson(json, Map.class); // json String to Map
+        recorded(SensorCall.UPDATE, json);
+        SplitUpdate split = split(json, (start, end) -> new StringReader(json.substring(start, end)));
+        updateBoardMapValues(split == null ? new StringReader(json) : null, split);
+    }
 
-        for (Object boardNameKey : element.keySet()) { // Iterate over board types
-            String boardName = (String) boardNameKey;
-            if (portsMap.containsKey(boardName)) { // We want only boards that exist on our map
-                @SuppressWarnings("unchecked")
-                Map<String, Map<String, Double>> indexesToPorts = (Map<String, Map<String, Double>>) element.get(boardNameKey);
-                for (Map.Entry<String, Map<String, Double>> boardIndex : indexesToPorts.entrySet()) { // Iterate over board indexes
-                    if (portsMap.get(boardName).containsKey(boardIndex.getKey())) {
-                        for (Map.Entry<String, Double> portAndValue : boardIndex.getValue().entrySet()) {
-                            setPortValue(boardName, boardIndex.getKey(), portAndValue.getKey(), portAndValue.getValue());
-                            if (portNicknamesMap.containsKey(boardName)
-                                    && portNicknamesMap.get(boardName).containsKey(boardIndex.getKey().substring(1))) {
-                                Map<String, String> portsToNicks = portNicknamesMap.get(boardName).get(boardIndex.getKey().substring(1));
-                                if (portsToNicks.containsKey(portAndValue.getKey())) {
-                                    String nickname = portNicknamesMap.get(boardName).get(boardIndex.getKey().substring(1)).get(portAndValue.getKey());
-                                    setPortValue(boardName, boardIndex.getKey(), nickname, portAndValue.getValue());
-                                }
-                                else if ((portAndValue.getKey().charAt(0) == '_' && Character.isDigit(portAndValue.getKey().charAt(1)) && portsToNicks.containsKey(portAndValue.getKey().substring(1)))){
-                                    String nickname = portNicknamesMap.get(boardName).get(boardIndex.getKey().substring(1)).get(portAndValue.getKey().substring(1));
-                                    setPortValue(boardName, boardIndex.getKey(), nickname, portAndValue.getValue());
-                                }
-                            }
-                            updated = true;
-                        }
-                    }
-                    if (boardNicknamesMap.containsKey(boardName)
-                            && boardNicknamesMap.get(boardName).containsKey(boardIndex.getKey().substring(1))) {
-                        String indexNickname = boardNicknamesMap.get(boardName).get(boardIndex.getKey().substring(1));
-
-                        if (portsMap.get(boardName).containsKey(indexNickname)) {
-                            for (Map.Entry<String, Double> portAndValue : boardIndex.getValue().entrySet()) {
-                                setPortValue(boardName, indexNickname, portAndValue.getKey(), portAndValue.getValue());
-                                if (portNicknamesMap.containsKey(boardName)
-                                        && portNicknamesMap.get(boardName).containsKey(boardIndex.getKey().substring(1))) {
-                                    Map<String, String> portsToNicks = portNicknamesMap.get(boardName).get(boardIndex.getKey().substring(1));
-                                    if (portsToNicks.containsKey(portAndValue.getKey())) {
-                                        String nickname = portNicknamesMap.get(boardName).get(boardIndex.getKey().substring(1)).get(portAndValue.getKey());
-                                        setPortValue(boardName, indexNickname, nickname, portAndValue.getValue());
-                                    }
-                                    else if ((portAndValue.getKey().charAt(0) == '_' && Character.isDigit(portAndValue.getKey().charAt(1)) && portsToNicks.containsKey(portAndValue.getKey().substring(1)))){
-                                        String nickname = portNicknamesMap.get(boardName).get(boardIndex.getKey().substring(1)).get(portAndValue.getKey().substring(1));
-                                        setPortValue(boardName, indexNickname, nickname, portAndValue.getValue());
-                                    }
-                                }
-                                updated = true;
-                            }
-                        }
+    // Update from UTF-8 json, e.g. the body of a delivery, without making a String of it
+    public void updateBoardMapValues(byte[] json) {
+        updateFromUtf8(ByteBuffer.wrap(recorded(SensorCall.UPDATE, json)));
+    }
+
+    // Update from the UTF-8 json between the position and limit of the buffer, consuming it
+    public void updateBoardMapValues(ByteBuffer json) {
+        updateFromUtf8(recorded(SensorCall.UPDATE, json));
+    }
+
+    private void updateFromUtf8(ByteBuffer json) {
+        ByteBuffer bytes = json.slice();
+        SplitUpdate split = split(UpdateSplitter.ascii(bytes), (start, end) -> utf8Reader(bytes.duplicate().position(start).limit(end)));
+        if (split != null) {
+            json.position(json.limit());
+        }
+        updateBoardMapValues(split == null ? utf8Reader(json) : null, split);
+    }
+
+    // Update from json, or board by board from split unless it is null
+    private void updateBoardMapValues(Reader json, SplitUpdate split) {
+        SensorMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        List<PortChange> changes = subscriptions.isEmpty() ? null : new ArrayList<>();
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            if (split != null) {
+                updateInParallel(split, changes);
+            } else {
+                try (JsonReader reader = new JsonReader(json)) {
+                    updateBoardMapValues(reader, changes);
+                }
+            }
+        } catch (MalformedJsonException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        } finally {
+            schemaLock.unlock();
+            publish();
+            notifyListeners(changes);
+            if (metrics != null) {
+                metrics.updates.increment();
+                metrics.updateLatency.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    // Apply values while reading the json tokens, without building a tree of the message.
+    // Changed values are added to changes unless it is null.
+    private void updateBoardMapValues(JsonReader reader, List<PortChange> changes) throws IOException {
+        PortFilters filters = filters();
+        reader.setLenient(true);
+        reader.beginObject();
+        while (reader.hasNext()) { // Iterate over board types
+            String boardName = reader.nextName();
+            if (!store.hasBoard(boardName)) { // We want only boards that exist on our map
+                reader.skipValue();
+                ignoredUnknown();
+                continue;
+            }
+            StampedLock boardLock = store.boardLock(store.boardId(boardName));
+            long stamp = boardLock.writeLock(); // Values of a board change together
+            try {
+                if (readBoardValues(reader, boardName, (slot, value) -> applyValue(slot, value, changes, filters))) {
+                    updated = true;
+                }
+            } finally {
+                boardLock.unlockWrite(stamp);
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Apply every update of at least minLength chars, or bytes for UTF-8 updates, board by board in parallel
+     * on pool, with the same result as applying it on the calling thread. Updates of a single board
+     * and updates in lenient json are still applied on the calling thread.
+     * Changes are reported to listeners board by board in the order the boards first appear in the update.
+     */
+    public void enableParallelUpdates(int minLength, ForkJoinPool pool) {
+        checkPositive("Parallel update length", minLength);
+        parallelUpdates = new ParallelUpdates(minLength, pool);
+    }
+
+    // Apply large updates in parallel on the common fork join pool
+    public void enableParallelUpdates(int minLength) {
+        enableParallelUpdates(minLength, ForkJoinPool.commonPool());
+    }
+
+    public void disableParallelUpdates() {
+        parallelUpdates = null;
+    }
+
+    // Where the boards of json are if it is to be applied in parallel, null if it is to be applied serially
+    private SplitUpdate split(CharSequence json, BiFunction<Integer, Integer, Reader> readerOfRange) {
+        ParallelUpdates parallelUpdates = this.parallelUpdates;
+        if (parallelUpdates == null || json.length() < parallelUpdates.minLength) {
+            return null;
+        }
+        Map<String, List<int[]>> boards = UpdateSplitter.boardRanges(json);
+        if (boards == null || boards.size() < 2) {
+            return null;
+        }
+        return new SplitUpdate(parallelUpdates.pool, boards, readerOfRange);
+    }
+
+    // Apply every board of an update on a task of its own, changes are added board by board
+    private void updateInParallel(SplitUpdate split, List<PortChange> changes) {
+        PortFilters filters = filters();
+        List<ForkJoinTask<List<PortChange>>> tasks = new ArrayList<>();
+        split.boards.forEach((boardName, ranges) -> {
+            if (!store.hasBoard(boardName)) { // We want only boards that exist on our map
+                ranges.forEach(range -> ignoredUnknown());
+                return;
+            }
+            List<PortChange> boardChanges = changes == null ? null : new ArrayList<>();
+            tasks.add(ForkJoinTask.adapt(() -> updateBoard(split, boardName, ranges, boardChanges, filters)));
+        });
+        split.pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        if (changes != null) {
+            tasks.forEach(task -> changes.addAll(task.join()));
+        }
+    }
+
+    // Apply every value of a board in an update, caller holds the schema read lock for the task
+    private List<PortChange> updateBoard(SplitUpdate split, String boardName, List<int[]> ranges,
+                                         List<PortChange> changes, PortFilters filters) {
+        StampedLock boardLock = store.boardLock(store.boardId(boardName));
+        long stamp = boardLock.writeLock(); // Values of a board change together
+        try {
+            for (int[] range : ranges) {
+                try (JsonReader reader = new JsonReader(split.readerOfRange.apply(range[0], range[1]))) {
+                    reader.setLenient(true);
+                    if (readBoardValues(reader, boardName, (slot, value) -> applyValue(slot, value, changes, filters))) {
+                        updated = true;
                     }
                 }
             }
+        } catch (MalformedJsonException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        } finally {
+            boardLock.unlockWrite(stamp);
         }
+        return changes;
     }
 
-    // Add new sensors from json to mapping
-    public synchronized void addToBoardsMap(String json) {
-        Map<String, Map<String, Map<String, Double>>> boards = jsonToBoardsMap(json); // Build Map of Robot Ports in json
-
-        for (Map.Entry<String, Map<String, Map<String, Double>>> board : boards.entrySet()) { // Iterate over board types
-            if (portsMap.containsKey(board.getKey())) { // If board type already exist in portsMap
-                for (Map.Entry<String, Map<String, Double>> entryInBoard : board.getValue().entrySet()) { // Iterate over board map
-                    Map<String, Map<String, Double>> boardsMap = portsMap.get(board.getKey());
-                    if (boardsMap.containsKey(entryInBoard.getKey())) { // If existing boards map already contain this board
-                        boardsMap.get(entryInBoard.getKey()).putAll(entryInBoard.getValue()); // Add boards value to pre existing port list
-                    } else {
-                        boardsMap.put(entryInBoard.getKey(), entryInBoard.getValue()); // Put new board into map
+    private static final class ParallelUpdates {
+        private final int minLength;
+        private final ForkJoinPool pool;
+
+        private ParallelUpdates(int minLength, ForkJoinPool pool) {
+            this.minLength = minLength;
+            this.pool = pool;
+        }
+    }
+
+    // An update split by board for applying it in parallel
+    private static final class SplitUpdate {
+        private final ForkJoinPool pool;
+        //    board name -> start and end of every value of the board in the update
+        private final Map<String, List<int[]>> boards;
+        private final BiFunction<Integer, Integer, Reader> readerOfRange;
+
+        private SplitUpdate(ForkJoinPool pool, Map<String, List<int[]>> boards, BiFunction<Integer, Integer, Reader> readerOfRange) {
+            this.pool = pool;
+            this.boards = boards;
+            this.readerOfRange = readerOfRange;
+        }
+    }
+
+    /**
+     * Apply several updates as one: when updates set the same port only the last value is applied,
+     * listeners are notified once with the changes of all of them and the robot data is published once.
+     * Meant for catching up on a backlog of updates.
+     */
+    public void updateBoardMapValues(List<String> jsons) {
+        recordedBatch(jsons, json -> json.getBytes(StandardCharsets.UTF_8));
+        List<Reader> readers = new ArrayList<>(jsons.size());
+        jsons.forEach(json -> readers.add(new StringReader(json)));
+        updateCoalesced(readers);
+    }
+
+    // Like updateBoardMapValues(List), for UTF-8 json such as delivery bodies
+    public void updateBoardMapValuesFromBytes(List<byte[]> jsons) {
+        recordedBatch(jsons, byte[]::clone);
+        List<Reader> readers = new ArrayList<>(jsons.size());
+        jsons.forEach(json -> readers.add(utf8Reader(json)));
+        updateCoalesced(readers);
+    }
+
+    private void updateCoalesced(List<Reader> jsons) {
+        SensorMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        List<PortChange> changes = subscriptions.isEmpty() ? null : new ArrayList<>();
+        boolean read = false;
+        try {
+            Lock schemaLock = store.schemaLock.readLock();
+            schemaLock.lock();
+            try {
+                CoalescedValues values = new CoalescedValues(filters());
+                for (Reader json : jsons) {
+                    try (JsonReader reader = new JsonReader(json)) {
+                        read |= readValues(reader, values);
+                    } catch (MalformedJsonException e) {
+                        throw new JsonSyntaxException(e);
+                    } catch (IOException e) {
+                        throw new JsonIOException(e);
                     }
                 }
-            } else { // If board type doesn't exist in portMap.
-                portsMap.put(board.getKey(), board.getValue()); // Add board type with all its data to map
+                values.apply(changes);
+            } finally {
+                schemaLock.unlock();
+            }
+            if (read) {
+                updated = true;
+            }
+            publish();
+            notifyListeners(changes);
+        } finally {
+            if (metrics != null) { // Counted like updateBoardMapValues, failed or not
+                metrics.updates.add(jsons.size());
+                metrics.updateLatency.record(System.nanoTime() - start); // The batch is timed as one update
             }
         }
-        addNicknamesToPortsMap();
     }
 
-    // Remove from mapping any sensors that exist on given json
-    public synchronized void removeFromBoardsMap(String json) {
-        Map<String, Map<String, Map<String, Double>>> data = jsonToBoardsMap(json);
-
-        for (Map.Entry<String, Map<String, Map<String, Double>>> entry : data.entrySet()) { // Iterate over boards
-            if (portsMap.containsKey(entry.getKey())) { // If our board map contains this board
-                for (Map.Entry<String, Map<String, Double>> entryInBoard : entry.getValue().entrySet()) { // Iterate over board indexes
-                    Map<String, Map<String, Double>> boardsMap = portsMap.get(entry.getKey());
-                    if (boardsMap.containsKey(entryInBoard.getKey())) { // If our board map contains board with this index
-                        entryInBoard.getValue().forEach((port, value) -> {
-                            boardsMap.get(entryInBoard.getKey()).remove(port);
-                            if (portNicknamesMap.containsKey(entry.getKey())
-                                    && portNicknamesMap.get(entry.getKey()).containsKey(entryInBoard.getKey())
-                                    && portNicknamesMap.get(entry.getKey()).get(entryInBoard.getKey()).containsKey(port)) {
-                                boardsMap.get(entryInBoard.getKey()).remove(
-                                        portNicknamesMap.get(entry.getKey()).get(entryInBoard.getKey()).get(port)
-                                );
-                            }
-                        });
+    // Read the values of an update without applying them, returns true if it had any port of a known index
+    // with a value its filter keeps
+    private boolean readValues(JsonReader reader, SlotValues values) throws IOException {
+        boolean read = false;
+        reader.setLenient(true);
+        reader.beginObject();
+        while (reader.hasNext()) { // Iterate over board types
+            String boardName = reader.nextName();
+            if (!store.hasBoard(boardName)) { // We want only boards that exist on our map
+                reader.skipValue();
+                ignoredUnknown();
+                continue;
+            }
+            read |= readBoardValues(reader, boardName, values);
+        }
+        reader.endObject();
+        return read;
+    }
+
+    // Hand the value of every known port of a board to values, by slot.
+    // Returns true if the board had any port of a known index with a value its filter keeps.
+    private boolean readBoardValues(JsonReader reader, String boardName, SlotValues values) throws IOException {
+        NicknameIndex nicknames = this.nicknames;
+        boolean read = false;
+        reader.beginObject();
+        while (reader.hasNext()) { // Iterate over board indexes
+            String boardIndex = reader.nextName();
+            Map<String, Integer> ports = store.indexSlots(boardName, boardIndex);
+            if (ports == null) {
+                String indexNickname = nicknames.indexNickname(boardName, boardIndex);
+                ports = indexNickname == null ? null : store.indexSlots(boardName, indexNickname);
+            }
+            if (ports == null) {
+                reader.skipValue();
+                ignoredUnknown();
+                continue;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) { // Iterate over ports, nicknames share the port slot
+                String port = reader.nextName();
+                Double value = nextValue(reader);
+                Integer slot = ports.get(port);
+                if (slot == null) {
+                    String portNickname = nicknames.portNickname(boardName, boardIndex, port);
+                    slot = portNickname == null ? null : ports.get(portNickname);
+                }
+                if (slot != null) {
+                    read |= values.put(slot, value);
+                } else {
+                    ignoredUnknown();
+                    read = true;
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return read;
+    }
+
+    // Set the value of a slot unless its filter drops it, adding it to changes if it changed and changes
+    // is not null. Returns whether the value was set. Caller holds the write lock of the slot board.
+    private boolean applyValue(int slot, Double value, List<PortChange> changes, PortFilters filters) {
+        Double oldValue = changes != null || filters != null ? store.currentValue(slot) : null;
+        if (filters != null && !filters.keep(slot, oldValue, value)) {
+            store.touch(slot);
+            suppressed();
+            return false;
+        }
+        SensorMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.valuesApplied.increment();
+        }
+        if (changes != null && !Objects.equals(oldValue, value)) {
+            changes.add(new PortChange(store.boardName(slot), store.indexName(slot), store.portName(slot), oldValue, value));
+        }
+        if (value == null) {
+            store.setAbsent(slot);
+        } else {
+            store.set(slot, value);
+        }
+        return true;
+    }
+
+    private void ignoredUnknown() {
+        SensorMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.unknownPortsIgnored.increment();
+        }
+    }
+
+    private void suppressed() {
+        SensorMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.valuesSuppressed.increment();
+        }
+    }
+
+    // Receives the values of an update by slot
+    private interface SlotValues {
+        // Returns false if the value is filtered out
+        boolean put(int slot, Double value);
+    }
+
+    // Last value given to every slot, applied one board at a time
+    private final class CoalescedValues implements SlotValues {
+        private final BitSet slots = new BitSet();
+        private final BitSet absent = new BitSet();
+        // Slots whose every value was filtered out, still received
+        private final BitSet dropped = new BitSet();
+        private double[] values = new double[64];
+        private final PortFilters filters;
+
+        private CoalescedValues(PortFilters filters) {
+            this.filters = filters;
+        }
+
+        // Values filtered out against the current value are dropped here, the kept ones are filtered again when applied
+        @Override
+        public boolean put(int slot, Double value) {
+            if (filters != null && !filters.wouldKeep(slot, store.getValue(slot), value)) {
+                dropped.set(slot);
+                suppressed();
+                return false;
+            }
+            slots.set(slot);
+            dropped.clear(slot);
+            if (value == null) {
+                absent.set(slot);
+                return true;
+            }
+            if (slot >= values.length) {
+                values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+            }
+            absent.clear(slot);
+            values[slot] = value;
+            return true;
+        }
+
+        // Caller holds the schema read lock
+        private void apply(List<PortChange> changes) {
+            BitSet boards = new BitSet();
+            slots.stream().forEach(slot -> boards.set(store.slotBoard(slot)));
+            dropped.andNot(slots);
+            dropped.stream().forEach(slot -> boards.set(store.slotBoard(slot)));
+            for (int boardId = boards.nextSetBit(0); boardId >= 0; boardId = boards.nextSetBit(boardId + 1)) {
+                StampedLock boardLock = store.boardLock(boardId);
+                long stamp = boardLock.writeLock();
+                try {
+                    for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+                        if (store.slotBoard(slot) == boardId) {
+                            applyValue(slot, absent.get(slot) ? null : values[slot], changes, filters);
+                        }
                     }
+                    for (int slot = dropped.nextSetBit(0); slot >= 0; slot = dropped.nextSetBit(slot + 1)) {
+                        if (store.slotBoard(slot) == boardId) {
+                            store.touch(slot);
+                        }
+                    }
+                } finally {
+                    boardLock.unlockWrite(stamp);
                 }
             }
         }
     }
 
-    // Create new mapping of board name -> index -> ports and values
-    // from given json
-    private Map<String, Map<String, Map<String, Double>>> jsonToBoardsMap(String json) {
-        Map<String, Map<String, Map<String, Double>>> data = new HashMap<>();
+    private static Double nextValue(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextDouble();
+    }
+
+    // Add new sensors from json to mapping
+    public void addToBoardsMap(String json) {
+        addToBoardsMap(new StringReader(recorded(SensorCall.ADD, json)));
+    }
+
+    public void addToBoardsMap(byte[] json) {
+        addToBoardsMap(utf8Reader(recorded(SensorCall.ADD, json)));
+    }
+
+    public void addToBoardsMap(ByteBuffer json) {
+        addToBoardsMap(utf8Reader(recorded(SensorCall.ADD, json)));
+    }
+
+    private void addToBoardsMap(Reader json) {
+        SensorMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            Map<String, Map<String, Set<String>>> boards = jsonToBoardsMap(json); // Build Map of Robot Ports in json
+
+            boards.forEach((boardName, indexes) -> // Iterate over board types
+                    indexes.forEach((index, ports) -> { // Iterate over board indexes
+                        registerIndex(boardName, index); // Board index exists even if it has no ports
+                        ports.forEach(port -> store.setValue(registerPort(boardName, index, port), null)); // Add ports, resetting values of pre existing ones
+                    }));
+        } finally {
+            schemaLock.unlock();
+        }
+        publish();
+        if (metrics != null) {
+            metrics.addLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    // Remove from mapping any sensors that exist on given json
+    public void removeFromBoardsMap(String json) {
+        removeFromBoardsMap(new StringReader(recorded(SensorCall.REMOVE, json)));
+    }
+
+    public void removeFromBoardsMap(byte[] json) {
+        removeFromBoardsMap(utf8Reader(recorded(SensorCall.REMOVE, json)));
+    }
+
+    public void removeFromBoardsMap(ByteBuffer json) {
+        removeFromBoardsMap(utf8Reader(recorded(SensorCall.REMOVE, json)));
+    }
+
+    private void removeFromBoardsMap(Reader json) {
+        SensorMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            Map<String, Map<String, Set<String>>> data = jsonToBoardsMap(json);
+
+            data.forEach((boardName, indexes) -> // Iterate over boards
+                    indexes.forEach((index, ports) -> // Iterate over board indexes
+                            ports.forEach(port -> store.removePort(boardName, index, port)))); // Port nicknames are removed with it
+        } finally {
+            schemaLock.unlock();
+        }
+        publish();
+        if (metrics != null) {
+            metrics.removeLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    // Create new mapping of board name -> index -> ports
+    // from given json, nicknames of indexes and ports are replaced by their real names
+    private Map<String, Map<String, Set<String>>> jsonToBoardsMap(Reader json) {
+        Map<String, Map<String, Set<String>>> data = new LinkedHashMap<>();
         Gson gson = new Gson();
-        Map<?, ?> element = gson.fromJson(json, Map.class); // json String to Map
+        Map<?, ?> element = gson.fromJson(json, Map.class); // json to Map
 
         for (Object key : element.keySet()) { // Iterate over board types
-            data.put((String) key, new HashMap<>()); // Add board name to map
+            String boardName = (String) key;
+            Map<String, Set<String>> indexes = new LinkedHashMap<>();
+            data.put(boardName, indexes); // Add board name to map
             Object value = element.get(key);
 
             // Check if board contains map of boards or list of ports
             // board in json might have mapping of a number of boards of its type
             // or list of ports that will be treated as if there's only one board of this type
             if (value instanceof ArrayList) { // If board has list of ports.
-
                 @SuppressWarnings("unchecked")
-                ArrayList<String> ports = (ArrayList<String>) value;
-                Map<String, Double> portMap = new HashMap<>();
-                ports.forEach(port -> {
-                    portMap.put(fixName(port), null);
-                    if (portNicknamesMap.containsKey((String) key)
-                            && portNicknamesMap.get((String) key).containsKey("1")) {
-                        if (portNicknamesMap.get((String) key).get("1").containsKey(fixName(port))) {
-                            portMap.putIfAbsent(portNicknamesMap.get((String) key).get("1").get(fixName(port)), null);
-                        }
-                        if (portNicknamesMap.get((String) key).get("1").containsValue(fixName(port))) {
-                            String originalKey = getKeyByValue(portNicknamesMap.get((String) key).get("1"), fixName(port));
-                            portMap.putIfAbsent(originalKey != null? fixName(originalKey): null, null);
-                        }
-                    }
-                });
-                data.get(key).put("_1", portMap); // Index of the first board of this type is 1
-                if (boardNicknamesMap.containsKey((String) key)) {
-                    if (boardNicknamesMap.get((String) key).containsKey("1")) {
-                        data.get(key).putIfAbsent(boardNicknamesMap.get((String) key).get("1"), portMap); // Index of the first board of this type is 1
-                    }
-                }
+                List<String> ports = (List<String>) value;
+                indexes.put("_1", realPortKeys(boardName, "_1", ports)); // Index of the first board of this type is 1
             } else if (value instanceof LinkedTreeMap) { // If board has map boards of this type
                 @SuppressWarnings("unchecked")
                 Map<String, List<String>> valueMapped = (Map<String, List<String>>) value; // Map of boards to ports list
                 for (Map.Entry<String, List<String>> intAndList : valueMapped.entrySet()) {
-
-                    Set<String> portList = new HashSet<>(intAndList.getValue());
-
-                    Map<String, Double> portMap = new HashMap<>();
-                    portList.forEach(port -> {
-                        portMap.put(fixName(port), null);
-                        if (portNicknamesMap.containsKey((String) key)) {
-                            String realIndex = fixName(intAndList.getKey());
-                            if (boardNicknamesMap.containsKey((String) key) &&
-                                    boardNicknamesMap.get((String) key).containsValue(realIndex)) {
-                                realIndex = getKeyByValue(boardNicknamesMap.get((String) key), realIndex);
-                            }
-
-                            if (portNicknamesMap.get((String) key).containsKey(realIndex)) {
-                                if (portNicknamesMap.get((String) key).get(realIndex).containsKey(fixName(port))) {
-                                    portMap.putIfAbsent(portNicknamesMap.get((String) key).get(realIndex).get(fixName(port)), null);
-                                }
-                                if (portNicknamesMap.get((String) key).get(realIndex).containsValue(fixName(port))) {
-                                    String originalKey = getKeyByValue(portNicknamesMap.get((String) key).get(realIndex), fixName(port));
-                                    portMap.putIfAbsent(originalKey != null? fixName(originalKey): null, null);
-                                }
-                            }
-                        }
-                    });
-                    data.get(key).put(fixName(intAndList.getKey()), portMap);
-                    if (boardNicknamesMap.containsKey((String) key)) {
-                        if (boardNicknamesMap.get((String) key).containsKey(fixName(intAndList.getKey()))) {
-                            data.get(key).putIfAbsent(boardNicknamesMap.get((String) key).get(fixName(intAndList.getKey())), portMap);
-                        }
-                        if (boardNicknamesMap.get((String) key).containsValue(fixName(intAndList.getKey()))) {
-                            String originalKey = getKeyByValue(boardNicknamesMap.get((String) key), fixName(intAndList.getKey()));
-                            data.get(key).putIfAbsent(originalKey != null? fixName(originalKey): null, portMap);
-                        }
-                    }
+                    String index = realIndexKey(boardName, fixName(intAndList.getKey()));
+                    indexes.computeIfAbsent(index, i -> new LinkedHashSet<>())
+                            .addAll(realPortKeys(boardName, index, intAndList.getValue()));
                 }
             }
         }
         return data;
     }
 
-    private synchronized void addNicknamesToPortsMap() {
-        Map<String, Map<String, Map<String, Double>>> updatedPortsMap = new HashMap<>();
-        portsMap.forEach((boardName, indexes) -> {
-            boolean indexesHaveNicknames = boardNicknamesMap.containsKey(boardName);
-            boolean portsHaveNicknames = portNicknamesMap.containsKey(boardName);
-            Map<String, Map<String, Double>> indexValueMap = new HashMap<>();
-            indexes.forEach((index, ports) -> {
-                boolean indexHasNickname = indexesHaveNicknames && boardNicknamesMap.get(boardName).containsKey(index);
-                boolean indexPortsHaveNicknames = portsHaveNicknames && portNicknamesMap.get(boardName).containsKey(index);
-                Map<String, Double> portValueMap = new HashMap<>();
-                ports.forEach((port, value) -> {
-                    portValueMap.put(port, value);
-                    if (indexPortsHaveNicknames && portNicknamesMap.get(boardName).get(index).containsKey(port)) {
-                        String nickname = portNicknamesMap.get(boardName).get(index).getOrDefault(port, null);
-                        portValueMap.put(portNicknamesMap.get(boardName).get(index).get(port), value);
-                    }
-                });
-                indexValueMap.put(index, portValueMap);
-                if (indexHasNickname) {
-                    indexValueMap.put(boardNicknamesMap.get(boardName).get(index), portValueMap);
-                }
-            });
-            updatedPortsMap.put(boardName, indexValueMap);
-        });
-        portsMap = updatedPortsMap;
+    // Replace aliases of the ports of a board with the ones given by the nickname maps,
+    // ports added later get their aliases when they are registered
+    private void addNicknamesToPortsMap(String boardName) {
+        if (!store.hasBoard(boardName)) {
+            return;
+        }
+        store.removeAliases(boardName);
+        Map<String, Map<String, Integer>> indexes = store.schema().get(boardName);
+        for (String index : new ArrayList<>(indexes.keySet())) {
+            registerIndex(boardName, index);
+            for (String port : new ArrayList<>(indexes.get(index).keySet())) {
+                registerPort(boardName, index, port);
+            }
+        }
+    }
+
+    // Add index to the store under its nickname as well
+    private void registerIndex(String boardName, String index) {
+        store.addIndex(boardName, index);
+        String indexNickname = nicknames.indexNickname(boardName, index);
+        if (indexNickname != null) {
+            store.addIndexAlias(boardName, index, indexNickname);
+        }
+    }
+
+    // Add port to the store under its nickname as well
+    private int registerPort(String boardName, String index, String port) {
+        int slot = store.addPort(boardName, index, port);
+        String portNickname = nicknames.portNickname(boardName, index, port);
+        if (portNickname != null) {
+            store.addPortAlias(boardName, index, port, portNickname);
+        }
+        return slot;
     }
 
     private Map<String, Map<String, Double>> getBoardsByName(String name) {
@@ -445,17 +1234,598 @@ public class RobotSensorsData implements Cloneable {
     }
 
     public void clear() {
-        portsMap.clear();
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            store.clear();
+        } finally {
+            schemaLock.unlock();
+        }
+        publish();
     }
 
-    private void setPortValue(String boardName, String boardIndex, String portName, Double newValue) {
+    // Publish values set through port handles, other changes are published as they happen.
+    // Waits for a snapshot holding every change made before the call.
+    public SensorSnapshot publishSnapshot() {
+        publishLock.lock();
         try {
-            Map<String, Double> ports = getPortsAndValues(boardName, boardIndex);
-            ports.replace(portName, newValue);
-        } catch (NullPointerException ignore) {
+            publishRequests.set(0);
+            publishLocked();
+        } finally {
+            publishLock.unlock();
         }
+        return snapshot;
     }
 
+    // Publish from whichever thread gets the publish lock first. A thread that finds it taken
+    // only leaves a request, which the holder sees before letting go and publishes again.
+    private void publish() {
+        publishRequests.incrementAndGet();
+        while (publishRequests.get() > 0 && publishLock.tryLock()) {
+            try {
+                publishRequests.set(0);
+                publishLocked();
+            } finally {
+                publishLock.unlock();
+            }
+        }
+    }
+
+    private void publishLocked() {
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            snapshot = SensorSnapshot.next(snapshot, store);
+            SensorPersistence persistence = this.persistence;
+            if (persistence != null) {
+                persistence.submit(snapshot, nicknames);
+            }
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    // Robot data as persisted in directory by enablePersistence, which it keeps persisting to.
+    // Empty robot data if nothing was persisted there yet.
+    public static RobotSensorsData restore(Path directory) throws IOException {
+        RobotSensorsData robotSensorsData = new RobotSensorsData();
+        SensorPersistence.restore(directory, robotSensorsData);
+        robotSensorsData.enablePersistence(directory);
+        return robotSensorsData;
+    }
+
+    public void enablePersistence(Path directory) throws IOException {
+        enablePersistence(directory, SensorPersistence.DEFAULT_JOURNAL_BYTES);
+    }
+
+    // Keep nicknames, ports and values in directory so restore(directory) brings them back after a restart.
+    // Published snapshots are written in the background, appending their changed boards to a journal of journalBytes,
+    // once full the journal is compacted into a new checkpoint of all values.
+    public void enablePersistence(Path directory, int journalBytes) throws IOException {
+        SensorPersistence persistence = SensorPersistence.open(directory, journalBytes, this, store);
+        SensorPersistence previous;
+        publishLock.lock();
+        try {
+            Lock schemaLock = store.schemaLock.readLock();
+            schemaLock.lock();
+            try {
+                persistence.record(snapshot, nicknames); // First record is a checkpoint
+            } finally {
+                schemaLock.unlock();
+            }
+            previous = this.persistence;
+            this.persistence = persistence;
+        } catch (IOException | RuntimeException e) {
+            try {
+                persistence.close();
+            } catch (IOException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        } finally {
+            publishLock.unlock();
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    // Stop persisting once the snapshots already published are written, values persisted stay in the directory.
+    // Throws the first failure to write since persistence was enabled.
+    public void disablePersistence() throws IOException {
+        SensorPersistence persistence;
+        publishLock.lock();
+        try {
+            persistence = this.persistence;
+            this.persistence = null;
+        } finally {
+            publishLock.unlock();
+        }
+        if (persistence != null) {
+            persistence.close();
+        }
+    }
+
+    // Pass every update, add and remove to recorder before applying it, null stops recording
+    public void setCallRecorder(SensorCallRecorder recorder) {
+        callRecorder = recorder;
+    }
+
+    private String recorded(SensorCall call, String json) {
+        SensorCallRecorder recorder = callRecorder;
+        if (recorder != null) {
+            recorder.record(call, json.getBytes(StandardCharsets.UTF_8));
+        }
+        return json;
+    }
+
+    private byte[] recorded(SensorCall call, byte[] json) {
+        SensorCallRecorder recorder = callRecorder;
+        if (recorder != null) {
+            recorder.record(call, json.clone());
+        }
+        return json;
+    }
+
+    // Records the updates of a batch as one call, bytes gives the UTF-8 json the recorder keeps
+    private <T> void recordedBatch(List<T> jsons, Function<T, byte[]> bytes) {
+        SensorCallRecorder recorder = callRecorder;
+        if (recorder != null) {
+            List<byte[]> batch = new ArrayList<>(jsons.size());
+            jsons.forEach(json -> batch.add(bytes.apply(json)));
+            recorder.recordBatch(batch);
+        }
+    }
+
+    // Records the bytes between position and limit, leaving the buffer as it was
+    private ByteBuffer recorded(SensorCall call, ByteBuffer json) {
+        SensorCallRecorder recorder = callRecorder;
+        if (recorder != null) {
+            byte[] bytes = new byte[json.remaining()];
+            json.duplicate().get(bytes);
+            recorder.record(call, bytes);
+        }
+        return json;
+    }
+
+    // Start collecting metrics of updates, adds, removes and toJson, the only cost while they are off
+    // is checking that they are. Metrics are registered as a JMX MBean under objectName unless it is null,
+    // e.g. "RobotData:type=RobotSensorsData,name=robot1". Enabling them again keeps the metrics collected so far.
+    public synchronized SensorMetrics enableMetrics(String objectName) throws IllegalArgumentException {
+        SensorMetrics metrics = this.metrics != null ? this.metrics : new SensorMetrics(store);
+        unregisterMetrics();
+        if (objectName != null) {
+            try {
+                ObjectName name = new ObjectName(objectName);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+                metricsName = name;
+            } catch (JMException e) {
+                String errorMessage = String.format("Could not register metrics as %s - %s", objectName, e.getMessage());
+                logger.log(Level.SEVERE, errorMessage);
+                throw new IllegalArgumentException(errorMessage, e);
+            }
+        }
+        this.metrics = metrics;
+        return metrics;
+    }
+
+    // Stop collecting metrics and unregister their MBean
+    public synchronized void disableMetrics() {
+        metrics = null;
+        unregisterMetrics();
+    }
+
+    // Metrics collected so far, null while they are off
+    public SensorMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(metricsName);
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not unregister metrics " + metricsName, e);
+        }
+        metricsName = null;
+    }
+
+    // Nickname maps in the json format of buildNicknameMaps, caller holds the schema lock
+    String nicknamesJson() {
+        Map<String, List<Map<String, Object>>> boards = new LinkedHashMap<>();
+        Set<String> boardNames = new LinkedHashSet<>(boardNicknamesMap.keySet());
+        boardNames.addAll(portNicknamesMap.keySet());
+        for (String boardName : boardNames) {
+            Map<String, String> indexNicknames = boardNicknamesMap.getOrDefault(boardName, Map.of());
+            Map<String, Map<String, String>> portNicknames = portNicknamesMap.getOrDefault(boardName, Map.of());
+            List<Map<String, Object>> indexes = new ArrayList<>();
+            Set<String> indexNames = new HashSet<>(indexNicknames.keySet());
+            indexNames.addAll(portNicknames.keySet());
+            for (String index : indexNames) {
+                int position = Integer.parseInt(index); // Indexes are numbered by their place in the list
+                while (indexes.size() < position) {
+                    indexes.add(new LinkedHashMap<>());
+                }
+                Map<String, Object> nicknames = indexes.get(position - 1);
+                if (indexNicknames.containsKey(index)) {
+                    nicknames.put("Name", indexNicknames.get(index));
+                }
+                portNicknames.getOrDefault(index, Map.of()).forEach((port, nickname) ->
+                        nicknames.put(port, Map.of("Name", nickname)));
+            }
+            boards.put(boardName, indexes);
+        }
+        return new Gson().toJson(boards);
+    }
+
+    // All real ports with their values, null for ports without one, caller holds the schema lock
+    String toJsonWithAbsent() throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writeValues(writer, store.schema(), true);
+        writer.flush();
+        return out.toString();
+    }
+
+    // Register and set ports from values persisted by SensorPersistence
+    void restoreValues(String json) throws IOException {
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            readDeltaValues(reader);
+        } finally {
+            schemaLock.unlock();
+        }
+        publish();
+    }
+
+    // Resolve a port once for repeated reads and writes, index and port may be given by their nicknames
+    public PortHandle getPortHandle(String boardName, String index, String port) {
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            int slot = slotOf(boardName, index, port);
+            if (slot < 0) {
+                String errorMessage = String.format("Port %s of board %s %s does not exist", port, boardName, index);
+                logger.log(Level.SEVERE, errorMessage);
+                throw new IllegalArgumentException(errorMessage);
+            }
+            return new PortHandle(this, store, slot);
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    // Slot of a port given by real names or nicknames, -1 if it does not exist.
+    // Caller holds the schema read lock.
+    private int slotOf(String boardName, String index, String port) {
+        int slot = store.slotOf(boardName, index, port);
+        if (slot < 0) {
+            String realIndex = realIndexKey(boardName, fixName(index));
+            slot = store.slotOf(boardName, realIndex, realPortKey(boardName, realIndex, port));
+        }
+        return slot;
+    }
+
+    // Time a port last received a value in milliseconds since the epoch, or the time it was added if it never did.
+    // Values dropped by a filter count as received. Returns -1 if the port does not exist,
+    // index and port may be given by their nicknames.
+    public long getReceiveTime(String boardName, String index, String port) {
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            int slot = slotOf(boardName, index, port);
+            return slot < 0 ? -1 : store.receiveTime(slot);
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    /**
+     * Ports that received no value for more than staleMillis milliseconds, including ports that
+     * never received one since they were added that long ago. Only the stale ports are visited.
+     * @return board name -> board index -> port -> receive time, least recently received first, by real names
+     */
+    public Map<String, Map<String, Map<String, Long>>> getStalePorts(long staleMillis) {
+        long before = System.currentTimeMillis() - staleMillis;
+        Map<String, Map<String, Map<String, Long>>> stalePorts = new LinkedHashMap<>();
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            for (String boardName : store.schema().keySet()) {
+                int[] slots = store.staleSlots(store.boardId(boardName), before);
+                if (slots.length == 0) {
+                    continue;
+                }
+                Map<String, Map<String, Long>> indexes = stalePorts.computeIfAbsent(boardName, b -> new LinkedHashMap<>());
+                for (int slot : slots) {
+                    indexes.computeIfAbsent(store.indexName(slot), i -> new LinkedHashMap<>())
+                            .put(store.portName(slot), store.receiveTime(slot));
+                }
+            }
+        } finally {
+            schemaLock.unlock();
+        }
+        return stalePorts;
+    }
+
+    // Keep the last capacity values of every port with the time they were set,
+    // a capacity of 0 stops keeping history. History kept so far is dropped.
+    public void enableHistory(int capacity) {
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            store.enableHistory(capacity);
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    // Values of a port set from fromMillis to toMillis inclusive, in milliseconds since the epoch.
+    // Returns null if the port does not exist, index and port may be given by their nicknames.
+    public PortSamples getHistory(String boardName, String index, String port, long fromMillis, long toMillis) {
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            int slot = slotOf(boardName, index, port);
+            return slot < 0 ? null : store.history(slot, fromMillis, toMillis);
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    // Values of a port set during the last lastMillis milliseconds
+    public PortSamples getRecentHistory(String boardName, String index, String port, long lastMillis) {
+        return getHistory(boardName, index, port, System.currentTimeMillis() - lastMillis, Long.MAX_VALUE);
+    }
+
+    // Aggregate values of a port set from now on in tumbling windows of windowMillis milliseconds
+    public PortAggregate addTumblingAggregate(String boardName, String index, String port,
+                                              long windowMillis, double ewmaAlpha) {
+        checkPositive("Aggregate window", windowMillis);
+        return addAggregate(boardName, index, port, (lock, slot) -> PortAggregate.tumbling(lock,
+                boardName, store.indexName(slot), store.portName(slot), windowMillis, ewmaAlpha), ewmaAlpha);
+    }
+
+    // Aggregate the last windowSamples values of a port set from now on
+    public PortAggregate addSlidingAggregate(String boardName, String index, String port,
+                                             int windowSamples, double ewmaAlpha) {
+        checkPositive("Aggregate window", windowSamples);
+        return addAggregate(boardName, index, port, (lock, slot) -> PortAggregate.sliding(lock,
+                boardName, store.indexName(slot), store.portName(slot), windowSamples, ewmaAlpha), ewmaAlpha);
+    }
+
+    public void removeAggregate(PortAggregate aggregate) {
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            store.removeAggregate(aggregate);
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    private PortAggregate addAggregate(String boardName, String index, String port,
+                                       BiFunction<StampedLock, Integer, PortAggregate> aggregateOfSlot,
+                                       double ewmaAlpha) {
+        if (!(ewmaAlpha > 0 && ewmaAlpha <= 1)) {
+            String errorMessage = String.format("EWMA alpha must be in (0, 1] - %s", ewmaAlpha);
+            logger.log(Level.SEVERE, errorMessage);
+            throw new IllegalArgumentException(errorMessage);
+        }
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            int slot = slotOf(boardName, index, port);
+            if (slot < 0) {
+                String errorMessage = String.format("Port %s of board %s %s does not exist", port, boardName, index);
+                logger.log(Level.SEVERE, errorMessage);
+                throw new IllegalArgumentException(errorMessage);
+            }
+            PortAggregate aggregate = aggregateOfSlot.apply(store.boardLock(store.slotBoard(slot)), slot);
+            store.addAggregate(slot, aggregate);
+            return aggregate;
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    private void checkPositive(String name, long value) {
+        if (value <= 0) {
+            String errorMessage = String.format("%s must be positive - %d", name, value);
+            logger.log(Level.SEVERE, errorMessage);
+            throw new IllegalArgumentException(errorMessage);
+        }
+    }
+
+    // Drop values updates give ports of boards of type boardName that hardly changed or came too soon,
+    // for ports without a filter of their own. A null filter removes it.
+    public void setBoardFilter(String boardName, PortFilter filter) {
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            if (filter == null) {
+                boardFilters.remove(boardName);
+            } else {
+                boardFilters.put(boardName, filter);
+            }
+            compileFilters();
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    // Drop values updates give a port that hardly changed or came too soon, index and port may be given
+    // by their nicknames and need not exist yet. A null filter removes it, leaving the filter of its board.
+    // Filters apply to json updates, values set through port handles, deltas or the binary format are kept.
+    public void setPortFilter(String boardName, String index, String port, PortFilter filter) {
+        Lock schemaLock = store.schemaLock.writeLock();
+        schemaLock.lock();
+        try {
+            String realIndex = realIndexKey(boardName, fixName(index));
+            String realPort = realPortKey(boardName, realIndex, port);
+            if (filter != null) {
+                portFilters.computeIfAbsent(boardName, board -> new HashMap<>())
+                        .computeIfAbsent(realIndex, i -> new HashMap<>()).put(realPort, filter);
+            } else if (portFilters.containsKey(boardName) && portFilters.get(boardName).containsKey(realIndex)) {
+                portFilters.get(boardName).get(realIndex).remove(realPort);
+            }
+            compileFilters();
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    // Caller holds the schema write lock
+    private void compileFilters() {
+        boolean noFilters = boardFilters.isEmpty()
+                && portFilters.values().stream().flatMap(indexes -> indexes.values().stream()).allMatch(Map::isEmpty);
+        filters.set(noFilters ? null : buildFilters(filters.get()));
+    }
+
+    // Filters of the current ports, null if no filter is set. Caller holds the schema lock.
+    // Updaters that find the schema changed race to rebuild them, all use the filters of the one that
+    // wins so the times values were kept are recorded in one place.
+    private PortFilters filters() {
+        PortFilters filters = this.filters.get();
+        while (filters != null && filters.generation != store.generation()) {
+            PortFilters rebuilt = buildFilters(filters);
+            if (this.filters.compareAndSet(filters, rebuilt)) {
+                return rebuilt;
+            }
+            filters = this.filters.get();
+        }
+        return filters;
+    }
+
+    private PortFilters buildFilters(PortFilters previous) {
+        PortFilter[] bySlot = new PortFilter[store.slotLimit()];
+        store.schema().forEach((boardName, indexes) -> {
+            PortFilter boardFilter = boardFilters.get(boardName);
+            Map<String, Map<String, PortFilter>> indexFilters = portFilters.getOrDefault(boardName, Map.of());
+            indexes.forEach((index, ports) -> {
+                if (store.isIndexAlias(boardName, index)) {
+                    return;
+                }
+                Map<String, PortFilter> filters = indexFilters.getOrDefault(index, Map.of());
+                ports.forEach((port, slot) -> {
+                    if (store.isPortName(port, slot)) {
+                        bySlot[slot] = filters.getOrDefault(port, boardFilter);
+                    }
+                });
+            });
+        });
+        return new PortFilters(store.generation(), bySlot, previous, store);
+    }
+
+    void markUpdated() {
+        updated = true;
+    }
+
+    boolean hasPortListeners() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Call listener with the changes of every update that touches the given ports.
+     * Any of boardName, index and port may be null to match all of them, index and port
+     * may be given by their nicknames. Changes are reported with real index and port names.
+     */
+    public void addPortListener(String boardName, String index, String port, PortListener listener) {
+        String realIndex = index == null ? null : realIndexKey(boardName, fixName(index));
+        String realPort = port == null ? null
+                : realIndex == null || boardName == null ? fixName(port) : realPortKey(boardName, realIndex, port);
+        subscriptions.add(new PortSubscription(boardName, realIndex, realPort, listener));
+    }
+
+    // Remove every subscription of listener
+    public void removePortListener(PortListener listener) {
+        subscriptions.removeIf(subscription -> subscription.listener == listener);
+    }
+
+    // Executor listeners are called on, e.g. a single thread executor to keep them off the update thread
+    public void setListenerExecutor(Executor executor) {
+        listenerExecutor = Objects.requireNonNull(executor);
+    }
+
+    // Hand each listener the changes it subscribed to, once per update
+    void notifyListeners(List<PortChange> changes) {
+        if (changes == null || changes.isEmpty()) {
+            return;
+        }
+        Executor executor = listenerExecutor;
+        for (PortSubscription subscription : subscriptions) {
+            List<PortChange> matching = new ArrayList<>();
+            for (PortChange change : changes) {
+                if (subscription.matches(change)) {
+                    matching.add(change);
+                }
+            }
+            if (!matching.isEmpty()) {
+                List<PortChange> batch = Collections.unmodifiableList(matching);
+                executor.execute(() -> {
+                    try {
+                        subscription.listener.portsChanged(batch);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Port listener failed", e);
+                    }
+                });
+            }
+        }
+    }
+
+    private static final class PortSubscription {
+        private final String boardName;
+        private final String index;
+        private final String port;
+        private final PortListener listener;
+
+        private PortSubscription(String boardName, String index, String port, PortListener listener) {
+            this.boardName = boardName;
+            this.index = index;
+            this.port = port;
+            this.listener = Objects.requireNonNull(listener);
+        }
+
+        private boolean matches(PortChange change) {
+            return (boardName == null || boardName.equals(change.getBoardName()))
+                    && (index == null || index.equals(change.getIndex()))
+                    && (port == null || port.equals(change.getPort()));
+        }
+    }
+
+
+    private static Reader utf8Reader(byte[] json) {
+        return new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8);
+    }
+
+    private static Reader utf8Reader(ByteBuffer json) {
+        if (json.hasArray()) {
+            Reader reader = new InputStreamReader(new ByteArrayInputStream(json.array(),
+                    json.arrayOffset() + json.position(), json.remaining()), StandardCharsets.UTF_8);
+            json.position(json.limit());
+            return reader;
+        }
+        return new InputStreamReader(new InputStream() {
+            @Override
+            public int read() {
+                return json.hasRemaining() ? json.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (!json.hasRemaining()) {
+                    return length == 0 ? 0 : -1;
+                }
+                length = Math.min(length, json.remaining());
+                json.get(bytes, offset, length);
+                return length;
+            }
+        }, StandardCharsets.UTF_8);
+    }
 
     // Prepend '_' to port and board index names that start with a number
     private String fixName(String name) {
@@ -463,17 +1833,40 @@ public class RobotSensorsData implements Cloneable {
         return Character.isDigit(firstChar) ? "_" + name : name;
     }
 
+    // Read-only view of the current values, set them with updateBoardMapValues or a port handle
+    // so they are published and reported to listeners
     public Map<String, Map<String, Map<String, Double>>> getPortsMap() {
         return portsMap;
     }
 
-    private String getKeyByValue(Map<String, String> map, String value) {
-        for (Map.Entry<String, String> entry : map.entrySet()) {
-            if (entry.getValue().equals(value)) {
-                return entry.getKey();
-            }
-        }
-        return null;
+    // Store key of index, given the index or its nickname
+    private String realIndexKey(String boardName, String index) {
+        String realIndex = nicknames.indexOf(boardName, index);
+        return realIndex != null ? fixName(realIndex) : index;
+    }
+
+    // Store key of port, given the port or its nickname
+    private String realPortKey(String boardName, String index, String port) {
+        String realPort = nicknames.portOf(boardName, index, port);
+        return fixName(realPort != null ? realPort : port);
+    }
+
+    private Set<String> realPortKeys(String boardName, String index, List<String> ports) {
+        Set<String> realPorts = new LinkedHashSet<>();
+        ports.forEach(port -> realPorts.add(realPortKey(boardName, index, port)));
+        return realPorts;
+    }
+
+    // Index of board if given its nickname, otherwise the index itself
+    private String realIndexName(String boardName, String index) {
+        String realIndex = nicknames.indexOf(boardName, index);
+        return realIndex != null ? realIndex : index;
+    }
+
+    // Original name of port if given its nickname, otherwise the port itself
+    private String realPortName(String boardName, String index, String port) {
+        String realPort = nicknames.portOf(boardName, index, port);
+        return realPort != null ? realPort : port;
     }
 
     private void checkNickname(String nickName){
@@ -0,0 +1,51 @@
+package RobotData;
+
+/**
+ * Last samples of one port, kept in preallocated arrays that are overwritten oldest first.
+ * Written under the lock of the port board, see {@link SensorStore}.
+ */
+final class SampleRing {
+
+    private final long[] times;
+    private final double[] values;
+    // Position of the next sample
+    private int next;
+    private int size;
+
+    SampleRing(int capacity) {
+        times = new long[capacity];
+        values = new double[capacity];
+    }
+
+    void add(long time, double value) {
+        times[next] = time;
+        values[next] = value;
+        next = next + 1 == times.length ? 0 : next + 1;
+        if (size < times.length) {
+            size++;
+        }
+    }
+
+    void clear() {
+        next = 0;
+        size = 0;
+    }
+
+    // Samples taken from fromMillis to toMillis inclusive, oldest first
+    PortSamples copy(long fromMillis, long toMillis) {
+        int size = Math.min(this.size, times.length);
+        int oldest = Math.floorMod(next - size, times.length);
+        long[] rangeTimes = new long[size];
+        double[] rangeValues = new double[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int position = (oldest + i) % times.length;
+            long time = times[position];
+            if (time >= fromMillis && time <= toMillis) {
+                rangeTimes[count] = time;
+                rangeValues[count++] = values[position];
+            }
+        }
+        return new PortSamples(rangeTimes, rangeValues, count);
+    }
+}
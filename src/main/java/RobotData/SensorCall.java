@@ -0,0 +1,10 @@
+package RobotData;
+
+/**
+ * Calls of {@link RobotSensorsData} passed to a {@link SensorCallRecorder}.
+ */
+public enum SensorCall {
+    UPDATE, // updateBoardMapValues, a batch of updates is recorded by SensorCallRecorder.recordBatch
+    ADD, // addToBoardsMap
+    REMOVE // removeFromBoardsMap
+}
@@ -0,0 +1,20 @@
+package RobotData;
+
+import java.util.List;
+
+/**
+ * Receives every update, add and remove made to a {@link RobotSensorsData}, before it is applied
+ * and on the thread that made it, see {@link RobotSensorsData#setCallRecorder(SensorCallRecorder)}.
+ */
+@FunctionalInterface
+public interface SensorCallRecorder {
+
+    // json is the UTF-8 json given to the call, the recorder may keep it
+    void record(SensorCall call, byte[] json);
+
+    // jsons are the UTF-8 json of the updates of a batch given to updateBoardMapValues(List), applied as one call.
+    // Recorded as updates of their own unless the recorder keeps batches.
+    default void recordBatch(List<byte[]> jsons) {
+        jsons.forEach(json -> record(SensorCall.UPDATE, json));
+    }
+}
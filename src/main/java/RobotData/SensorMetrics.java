@@ -0,0 +1,111 @@
+package RobotData;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Counters, gauges and latency histograms of the hot paths of a {@link RobotSensorsData}.
+ * Only collected while enabled, robot data without metrics only checks that they are off.
+ */
+public final class SensorMetrics implements SensorMetricsMXBean {
+
+    private final SensorStore store;
+    final LatencyHistogram updateLatency = new LatencyHistogram();
+    final LatencyHistogram addLatency = new LatencyHistogram();
+    final LatencyHistogram removeLatency = new LatencyHistogram();
+    final LatencyHistogram toJsonLatency = new LatencyHistogram();
+    final LongAdder updates = new LongAdder();
+    final LongAdder valuesApplied = new LongAdder();
+    final LongAdder unknownPortsIgnored = new LongAdder();
+    final LongAdder valuesSuppressed = new LongAdder();
+
+    SensorMetrics(SensorStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    @Override
+    public long getValuesApplied() {
+        return valuesApplied.sum();
+    }
+
+    @Override
+    public long getUnknownPortsIgnored() {
+        return unknownPortsIgnored.sum();
+    }
+
+    @Override
+    public long getValuesSuppressed() {
+        return valuesSuppressed.sum();
+    }
+
+    @Override
+    public int getBoardCount() {
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            return store.schema().size();
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    @Override
+    public int getPortCount() {
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            return store.size();
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    @Override
+    public long getSchemaGeneration() {
+        return store.generation();
+    }
+
+    @Override
+    public LatencyStatistics getUpdateLatency() {
+        return updateLatency.statistics();
+    }
+
+    @Override
+    public LatencyStatistics getAddLatency() {
+        return addLatency.statistics();
+    }
+
+    @Override
+    public LatencyStatistics getRemoveLatency() {
+        return removeLatency.statistics();
+    }
+
+    @Override
+    public LatencyStatistics getToJsonLatency() {
+        return toJsonLatency.statistics();
+    }
+
+    @Override
+    public void reset() {
+        updateLatency.reset();
+        addLatency.reset();
+        removeLatency.reset();
+        toJsonLatency.reset();
+        updates.reset();
+        valuesApplied.reset();
+        unknownPortsIgnored.reset();
+        valuesSuppressed.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("updates=%d values=%d unknown=%d suppressed=%d boards=%d ports=%d update={%s} add={%s} remove={%s} toJson={%s}",
+                getUpdates(), getValuesApplied(), getUnknownPortsIgnored(), getValuesSuppressed(), getBoardCount(), getPortCount(),
+                getUpdateLatency(), getAddLatency(), getRemoveLatency(), getToJsonLatency());
+    }
+}
@@ -0,0 +1,39 @@
+package RobotData;
+
+/**
+ * Metrics of one {@link RobotSensorsData} as exposed through JMX,
+ * see {@link RobotSensorsData#enableMetrics(String)}.
+ */
+@SuppressWarnings("unused")
+public interface SensorMetricsMXBean {
+
+    // Update messages read, a batch of coalesced messages counts each of them
+    long getUpdates();
+
+    // Port values set by updates
+    long getValuesApplied();
+
+    // Ports, indexes and boards in updates that the robot does not have, each counted once
+    long getUnknownPortsIgnored();
+
+    // Port values in updates dropped by port filters
+    long getValuesSuppressed();
+
+    int getBoardCount();
+
+    // Ports without their nickname aliases
+    int getPortCount();
+
+    long getSchemaGeneration();
+
+    LatencyStatistics getUpdateLatency();
+
+    LatencyStatistics getAddLatency();
+
+    LatencyStatistics getRemoveLatency();
+
+    LatencyStatistics getToJsonLatency();
+
+    // Start counting and timing again from zero
+    void reset();
+}
@@ -0,0 +1,304 @@
+package RobotData;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the state of a {@link RobotSensorsData} in a directory so it can be restored after a restart.
+ * <p>
+ * The checkpoint file holds the nicknames and the value of every port. The journal file is
+ * memory-mapped with a fixed size, every published snapshot appends the values of the boards
+ * that changed in it. When the journal is full, or ports or nicknames change, a new checkpoint is
+ * written and the journal starts over, so restoring reads at most one checkpoint and one journal
+ * whatever the history. Both files carry an epoch, a journal is only replayed over the checkpoint
+ * of its own epoch.
+ * <p>
+ * Snapshots are written by a background thread so publishing never waits on the disk. It only keeps
+ * the latest snapshot handed to it, the journal record of that one covers every snapshot skipped.
+ * <p>
+ * Checkpoint: int magic, long epoch, int length and UTF-8 json of the nicknames,
+ * int length and UTF-8 json of the values.
+ * Journal: int magic, long epoch, then records of int length and UTF-8 json of values,
+ * ending with a length of 0. Values are json shaped like board name -> board index -> port -> value.
+ */
+final class SensorPersistence implements Closeable {
+
+    static final int DEFAULT_JOURNAL_BYTES = 1 << 20;
+    private static final int MAGIC = 0x50445352; // "RSDP"
+    private static final int JOURNAL_HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    private static final String CHECKPOINT = "checkpoint.bin";
+    private static final String JOURNAL = "journal.bin";
+
+    private final Logger logger = Logger.getLogger("Sensor Persistence");
+    private final Path directory;
+    private final FileChannel journalChannel;
+    private final MappedByteBuffer journal;
+    private final RobotSensorsData robotSensorsData;
+    private final SensorStore store;
+    private long epoch;
+    // Last snapshot and nicknames written, changes are taken relative to them
+    private SensorSnapshot recorded;
+    private Object recordedNicknames;
+    // Latest snapshot waiting for the writer, null once it took it
+    private final AtomicReference<Pending> pending = new AtomicReference<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "Sensor Persistence");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // First failure of the writer, thrown by close
+    private volatile IOException failure;
+
+    private SensorPersistence(Path directory, FileChannel journalChannel, MappedByteBuffer journal, long epoch,
+                              RobotSensorsData robotSensorsData, SensorStore store) {
+        this.directory = directory;
+        this.journalChannel = journalChannel;
+        this.journal = journal;
+        this.epoch = epoch;
+        this.robotSensorsData = robotSensorsData;
+        this.store = store;
+    }
+
+    static SensorPersistence open(Path directory, int journalBytes, RobotSensorsData robotSensorsData, SensorStore store)
+            throws IOException {
+        Files.createDirectories(directory);
+        long epoch = 0;
+        Path checkpoint = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint)) {
+            try (FileChannel channel = FileChannel.open(checkpoint, StandardOpenOption.READ)) {
+                epoch = readHeader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), CHECKPOINT);
+            }
+        }
+        FileChannel channel = FileChannel.open(directory.resolve(JOURNAL),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = JOURNAL_HEADER_BYTES + Math.max(journalBytes, Integer.BYTES);
+            channel.truncate(size); // Mapping grows the file when it is shorter
+            MappedByteBuffer journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new SensorPersistence(directory, channel, journal, epoch, robotSensorsData, store);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Restore robot data from the checkpoint and journal in directory, if there are any.
+     * @return false if the directory holds no checkpoint
+     */
+    static boolean restore(Path directory, RobotSensorsData robotSensorsData) throws IOException {
+        Path checkpointPath = directory.resolve(CHECKPOINT);
+        if (!Files.exists(checkpointPath)) {
+            return false;
+        }
+        long epoch;
+        try (FileChannel channel = FileChannel.open(checkpointPath, StandardOpenOption.READ)) {
+            ByteBuffer checkpoint = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            epoch = readHeader(checkpoint, CHECKPOINT);
+            robotSensorsData.buildNicknameMaps(readString(checkpoint));
+            robotSensorsData.restoreValues(readString(checkpoint));
+        }
+        Path journalPath = directory.resolve(JOURNAL);
+        if (!Files.exists(journalPath)) {
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            ByteBuffer journal = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (journal.remaining() < JOURNAL_HEADER_BYTES || readHeader(journal, JOURNAL) != epoch) {
+                return true; // Written before the checkpoint, which already holds its values
+            }
+            while (journal.remaining() >= Integer.BYTES) {
+                int length = journal.getInt();
+                if (length <= 0 || length > journal.remaining()) {
+                    break;
+                }
+                robotSensorsData.restoreValues(readString(journal, length));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Have the writer record snapshot, replacing any snapshot it did not take yet.
+     * Not called once close started.
+     */
+    void submit(SensorSnapshot snapshot, Object nicknames) {
+        if (pending.getAndSet(new Pending(snapshot, nicknames)) == null) {
+            writer.execute(this::write);
+        }
+    }
+
+    // Record the pending snapshot on the writer thread
+    private void write() {
+        Pending next = pending.getAndSet(null);
+        if (next == null) { // Taken by the previous write
+            return;
+        }
+        Lock schemaLock = store.schemaLock.readLock();
+        schemaLock.lock();
+        try {
+            record(next.snapshot, next.nicknames);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not persist sensor values", e);
+            if (failure == null) {
+                failure = e instanceof IOException ? (IOException) e : new IOException("Could not persist sensor values", e);
+            }
+        } finally {
+            schemaLock.unlock();
+        }
+    }
+
+    /**
+     * Write what changed since the last recorded snapshot.
+     * Called while holding the schema read lock, a snapshot of an earlier schema is written as a checkpoint.
+     */
+    void record(SensorSnapshot snapshot, Object nicknames) throws IOException {
+        if (snapshot == recorded && nicknames == recordedNicknames) {
+            return;
+        }
+        if (recorded == null || nicknames != recordedNicknames
+                || snapshot.getSchemaGeneration() != recorded.getSchemaGeneration()
+                || snapshot.getSchemaGeneration() != store.generation()) {
+            checkpoint(snapshot, nicknames);
+            return;
+        }
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        for (String boardName : snapshot.getBoardNames()) {
+            if (snapshot.hasSameBoard(recorded, boardName)) {
+                continue;
+            }
+            writer.name(boardName).beginObject();
+            for (String index : snapshot.getBoardIndexes(boardName)) {
+                if (store.isIndexAlias(boardName, index)) { // Restored with the nicknames
+                    continue;
+                }
+                writer.name(index).beginObject();
+                for (Map.Entry<String, Double> port : snapshot.getPortsAndValues(boardName, index).entrySet()) {
+                    if (!store.isPortName(port.getKey(), store.slotOf(boardName, index, port.getKey()))) {
+                        continue;
+                    }
+                    writer.name(port.getKey());
+                    if (port.getValue() == null) {
+                        writer.nullValue();
+                    } else {
+                        writer.value(port.getValue().doubleValue());
+                    }
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.flush();
+        byte[] record = out.toString().getBytes(StandardCharsets.UTF_8);
+        if (journal.remaining() < Integer.BYTES * 2 + record.length) { // Record and the end mark
+            checkpoint(snapshot, nicknames);
+            return;
+        }
+        int position = journal.position();
+        journal.position(position + Integer.BYTES);
+        journal.put(record);
+        journal.putInt(journal.position(), 0);
+        journal.putInt(position, record.length); // Record becomes visible last
+        recorded = snapshot;
+    }
+
+    // Write the whole state to a new checkpoint and empty the journal
+    private void checkpoint(SensorSnapshot snapshot, Object nicknames) throws IOException {
+        byte[] nicknamesJson = robotSensorsData.nicknamesJson().getBytes(StandardCharsets.UTF_8);
+        byte[] valuesJson = robotSensorsData.toJsonWithAbsent().getBytes(StandardCharsets.UTF_8);
+        long nextEpoch = epoch + 1;
+        Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer checkpoint = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    JOURNAL_HEADER_BYTES + Integer.BYTES * 2 + nicknamesJson.length + valuesJson.length);
+            checkpoint.putInt(MAGIC).putLong(nextEpoch)
+                    .putInt(nicknamesJson.length).put(nicknamesJson)
+                    .putInt(valuesJson.length).put(valuesJson);
+            checkpoint.force();
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.clear();
+        journal.putInt(MAGIC).putLong(nextEpoch).putInt(journal.position(), 0);
+        epoch = nextEpoch;
+        recorded = snapshot;
+        recordedNicknames = nicknames;
+    }
+
+    /**
+     * Write the snapshot still pending and close the journal.
+     * @throws IOException if writing this or any earlier snapshot failed
+     */
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warning("Still writing sensor values to " + directory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing sensor values to " + directory);
+        } finally {
+            journal.force();
+            journalChannel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static final class Pending {
+        private final SensorSnapshot snapshot;
+        private final Object nicknames;
+
+        private Pending(SensorSnapshot snapshot, Object nicknames) {
+            this.snapshot = snapshot;
+            this.nicknames = nicknames;
+        }
+    }
+
+    private static long readHeader(ByteBuffer buffer, String file) throws IOException {
+        if (buffer.remaining() < JOURNAL_HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException(file + " is not a sensor data file");
+        }
+        return buffer.getLong();
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) {
+            throw new EOFException(CHECKPOINT + " is truncated");
+        }
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new EOFException(CHECKPOINT + " is truncated");
+        }
+        return readString(buffer, length);
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,203 @@
+package RobotData;
+
+import java.util.*;
+
+/**
+ * Immutable, versioned view of all sensor values at one point in time.
+ * A new snapshot shares every board that did not change with the previous one,
+ * only boards with new values or ports are copied.
+ */
+@SuppressWarnings("unused")
+public final class SensorSnapshot {
+
+    static final SensorSnapshot EMPTY = new SensorSnapshot(0, 0, Map.of());
+
+    private final long version;
+    private final long schemaGeneration;
+    //    board name -> board values
+    private final Map<String, Board> boards;
+
+    private SensorSnapshot(long version, long schemaGeneration, Map<String, Board> boards) {
+        this.version = version;
+        this.schemaGeneration = schemaGeneration;
+        this.boards = boards;
+    }
+
+    /**
+     * Build the snapshot following previous from the changes recorded in the store,
+     * clearing them. The caller holds the schema read lock of the store and is the
+     * only thread building a snapshot of it.
+     * Every board is copied in one consistent state, boards written during the copy
+     * are marked changed again for the next snapshot.
+     * @return previous if nothing changed since it was taken
+     */
+    static SensorSnapshot next(SensorSnapshot previous, SensorStore store) {
+        if (!store.hasChanges()) {
+            return previous;
+        }
+        Map<String, Board> boards = new LinkedHashMap<>();
+        store.schema().forEach((boardName, indexes) -> {
+            int boardId = store.boardId(boardName);
+            Board board = previous.boards.get(boardName);
+            if (store.takeChanged(boardId) || board == null) {
+                Layout layout = board == null || store.isReshaped(boardId) ? new Layout(indexes) : board.layout;
+                board = new Board(layout, store, boardId);
+            }
+            boards.put(boardName, board);
+        });
+        store.clearReshaped();
+        return new SensorSnapshot(previous.version + 1, store.generation(), Collections.unmodifiableMap(boards));
+    }
+
+    // Register every port of the snapshot with its value and aliases in an empty store
+    void copyInto(SensorStore store) {
+        boards.forEach((boardName, board) -> {
+            Map<Map<String, Integer>, String> indexOfPorts = new IdentityHashMap<>();
+            board.layout.offsets.forEach((index, ports) -> {
+                String realIndex = indexOfPorts.putIfAbsent(ports, index);
+                if (realIndex != null) {
+                    store.addIndexAlias(boardName, realIndex, index);
+                    return;
+                }
+                store.addIndex(boardName, index);
+                Map<Integer, String> portOfOffset = new HashMap<>();
+                ports.forEach((port, offset) -> {
+                    String realPort = portOfOffset.putIfAbsent(offset, port);
+                    if (realPort != null) {
+                        store.addPortAlias(boardName, index, realPort, port);
+                    } else {
+                        store.setValue(store.addPort(boardName, index, port), board.getValue(offset));
+                    }
+                });
+            });
+        });
+    }
+
+    // Board values are shared by the two snapshots, so the board did not change between them
+    boolean hasSameBoard(SensorSnapshot other, String boardName) {
+        Board board = boards.get(boardName);
+        return board != null && board == other.boards.get(boardName);
+    }
+
+    /**
+     * @return number of the snapshot, every new snapshot of the same data has a higher version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return schema generation of the robot data when the snapshot was taken,
+     * structures derived from the ports of a snapshot stay valid while it does not change
+     */
+    public long getSchemaGeneration() {
+        return schemaGeneration;
+    }
+
+    public Set<String> getBoardNames() {
+        return boards.keySet();
+    }
+
+    public Set<String> getBoardIndexes(String boardName) {
+        Board board = boards.get(boardName);
+        return board == null ? null : board.layout.offsets.keySet();
+    }
+
+    public Set<String> getPorts(String boardName, String index) {
+        Map<String, Integer> ports = offsets(boardName, index);
+        return ports == null ? null : ports.keySet();
+    }
+
+    /**
+     * @return value of port or null if the port does not exist or has no value yet
+     */
+    public Double getValue(String boardName, String index, String port) {
+        Board board = boards.get(boardName);
+        Integer offset = board == null ? null : board.offset(index, port);
+        return offset == null ? null : board.getValue(offset);
+    }
+
+    /**
+     * @return value of port or defaultValue if the port does not exist or has no value yet
+     */
+    public double getDouble(String boardName, String index, String port, double defaultValue) {
+        Double value = getValue(boardName, index, port);
+        return value == null ? defaultValue : value;
+    }
+
+    public Map<String, Double> getPortsAndValues(String boardName, String index) {
+        Board board = boards.get(boardName);
+        Map<String, Integer> ports = offsets(boardName, index);
+        if (ports == null) {
+            return null;
+        }
+        Map<String, Double> values = new LinkedHashMap<>();
+        ports.forEach((port, offset) -> values.put(port, board.getValue(offset)));
+        return Collections.unmodifiableMap(values);
+    }
+
+    //    board name -> board index -> ports -> values
+    public Map<String, Map<String, Map<String, Double>>> getPortsMap() {
+        Map<String, Map<String, Map<String, Double>>> portsMap = new LinkedHashMap<>();
+        boards.forEach((boardName, board) -> {
+            Map<String, Map<String, Double>> indexes = new LinkedHashMap<>();
+            board.layout.offsets.keySet().forEach(index -> indexes.put(index, getPortsAndValues(boardName, index)));
+            portsMap.put(boardName, Collections.unmodifiableMap(indexes));
+        });
+        return Collections.unmodifiableMap(portsMap);
+    }
+
+    private Map<String, Integer> offsets(String boardName, String index) {
+        Board board = boards.get(boardName);
+        return board == null ? null : board.layout.offsets.get(index);
+    }
+
+    // Where each port of a board is kept, shared by snapshots until the board ports change.
+    // Aliases of an index share its ports map and aliases of a port share its offset.
+    private static final class Layout {
+        //    board index -> port -> offset in board values
+        private final Map<String, Map<String, Integer>> offsets;
+        // Store slot of every offset
+        private final int[] slots;
+
+        private Layout(Map<String, Map<String, Integer>> indexes) {
+            Map<String, Map<String, Integer>> offsets = new LinkedHashMap<>();
+            Map<Map<String, Integer>, Map<String, Integer>> aliasedPorts = new IdentityHashMap<>();
+            Map<Integer, Integer> offsetOfSlot = new LinkedHashMap<>();
+            for (Map.Entry<String, Map<String, Integer>> index : indexes.entrySet()) {
+                Map<String, Integer> ports = aliasedPorts.get(index.getValue());
+                if (ports == null) {
+                    Map<String, Integer> portOffsets = new LinkedHashMap<>();
+                    index.getValue().forEach((port, slot) ->
+                            portOffsets.put(port, offsetOfSlot.computeIfAbsent(slot, s -> offsetOfSlot.size())));
+                    ports = Collections.unmodifiableMap(portOffsets);
+                    aliasedPorts.put(index.getValue(), ports);
+                }
+                offsets.put(index.getKey(), ports);
+            }
+            slots = offsetOfSlot.keySet().stream().mapToInt(Integer::intValue).toArray();
+            this.offsets = Collections.unmodifiableMap(offsets);
+        }
+    }
+
+    private static final class Board {
+        private final Layout layout;
+        private final double[] values;
+        private final BitSet present = new BitSet();
+
+        private Board(Layout layout, SensorStore store, int boardId) {
+            this.layout = layout;
+            values = new double[layout.slots.length];
+            store.copyValues(boardId, layout.slots, values, present);
+        }
+
+        private Integer offset(String index, String port) {
+            Map<String, Integer> ports = layout.offsets.get(index);
+            return ports == null ? null : ports.get(port);
+        }
+
+        private Double getValue(int offset) {
+            return present.get(offset) ? values[offset] : null;
+        }
+    }
+}
@@ -0,0 +1,1096 @@
+package RobotData;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Flat storage of sensor values.
+ * Every (board, index, port) registered in the store gets a dense integer slot,
+ * values are kept unboxed in double arrays and a bitset marks which slots
+ * already received a value.
+ * Nicknames are aliases: an index alias shares the ports of its index and a
+ * port alias shares the slot of its port, so the value is kept once.
+ * <p>
+ * Boards, indexes, ports and aliases are guarded by {@link #schemaLock}: changing them
+ * takes its write lock, looking them up its read lock.
+ * Values are guarded per board by a {@link StampedLock}. Writers hold the write lock of
+ * their board, readers read optimistically and only take the read lock of the board when a
+ * writer interfered, so readers never block writers and writers of different boards never
+ * wait for each other. Values are kept in chunks that are never moved, so a writer that
+ * already knows its slot does not need the schema lock.
+ * <p>
+ * Stores built from {@link #shareSchema()} share boards, indexes, ports, aliases and slot names
+ * with the store they came from, each store copies them before changing its own.
+ * <p>
+ * Every slot keeps the time it last received a value, or was registered if it never did.
+ * The slots of a board are linked from least to most recently received under the board lock,
+ * so the slots not received for a while are found without looking at the others.
+ */
+final class SensorStore {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    final ReentrantReadWriteLock schemaLock = new ReentrantReadWriteLock();
+
+    //    board name -> board index -> port -> slot
+    private Map<String, Map<String, Map<String, Integer>>> slots = new LinkedHashMap<>();
+    //    board name -> index alias -> board index
+    private Map<String, Map<String, String>> indexAliases = new HashMap<>();
+    // Values by slot, in chunks of CHUNK_SIZE slots. Only the last chunk may be shorter,
+    // in stores built from a shared schema until they grow.
+    private volatile double[][] values = {new double[CHUNK_SIZE]};
+    private final AtomicBitSet present = new AtomicBitSet();
+    // Time every slot last received a value in millis, in chunks like the values
+    private volatile long[][] receiveTimes = {new long[CHUNK_SIZE]};
+    // Next older and next newer received slot of the same board plus one, 0 for none, in chunks like the values
+    private volatile int[][] olderSlots = {new int[CHUNK_SIZE]};
+    private volatile int[][] newerSlots = {new int[CHUNK_SIZE]};
+    // Least and most recently received slot of every board, by board id
+    private volatile Recency[] recencies = new Recency[8];
+    //    board name -> board id, ids index the board locks and change bitsets
+    private Map<String, Integer> boardIds = new HashMap<>();
+    // Guards the values of every board, by board id
+    private volatile StampedLock[] boardLocks = new StampedLock[8];
+    // Board id of every slot
+    private volatile int[] slotBoard = new int[CHUNK_SIZE];
+    // Incremented under the board lock every time a slot is released, so handles can detect reuse
+    private volatile int[] slotEpoch = new int[CHUNK_SIZE];
+    // Slots the values, receive times, links and epochs of this store have room for
+    private int capacity = CHUNK_SIZE;
+    // Boards whose values or ports changed since they were last taken by takeChanged
+    private final AtomicBitSet changedBoards = new AtomicBitSet();
+    // Boards whose indexes or ports changed since the last clearReshaped
+    private final BitSet reshapedBoards = new BitSet();
+    private boolean cleared;
+    // Incremented on every change of boards, indexes, ports or aliases
+    private volatile long generation;
+    // Slots whose value changed since they were last written to a delta
+    private final AtomicBitSet dirty = new AtomicBitSet();
+    // Ports were added or removed since the last clearDirty
+    private boolean schemaDirty = true;
+    // Names of every slot, for writing changes without searching the schema
+    private String[] boardNames = new String[8];
+    private String[] slotIndex = new String[CHUNK_SIZE];
+    private String[] slotPort = new String[CHUNK_SIZE];
+    // Slots released by removePort, reused before growing the arrays
+    private int[] freeSlots = new int[CHUNK_SIZE];
+    private int freeCount;
+    private int nextSlot;
+    // Recent samples of every slot, null while history is disabled
+    private volatile SampleRing[] histories;
+    private int historyCapacity;
+    // Aggregates of every slot, null while no aggregate was added
+    private volatile PortAggregate[][] aggregates;
+    // Schema maps and slot names are shared with other stores, copy them before changing them
+    private boolean sharedSchema;
+
+    SensorStore() {
+    }
+
+    // Store with the boards, indexes, ports and aliases of schema and no values
+    SensorStore(SharedSchema schema) {
+        slots = schema.slots;
+        indexAliases = schema.indexAliases;
+        boardIds = schema.boardIds;
+        boardNames = schema.boardNames;
+        slotBoard = schema.slotBoard;
+        slotIndex = schema.slotIndex;
+        slotPort = schema.slotPort;
+        freeSlots = schema.freeSlots;
+        freeCount = schema.freeCount;
+        nextSlot = schema.nextSlot;
+        sharedSchema = true;
+        // Room for the slots of the schema only, so robots sharing a small schema stay small
+        capacity = nextSlot;
+        int chunks = Math.max((capacity + CHUNK_MASK) >>> CHUNK_SHIFT, 1);
+        int lastChunk = capacity - ((chunks - 1) << CHUNK_SHIFT);
+        values = new double[chunks][];
+        receiveTimes = new long[chunks][];
+        olderSlots = new int[chunks][];
+        newerSlots = new int[chunks][];
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int length = chunk == chunks - 1 ? lastChunk : CHUNK_SIZE;
+            values[chunk] = new double[length];
+            receiveTimes[chunk] = new long[length];
+            olderSlots[chunk] = new int[length];
+            newerSlots[chunk] = new int[length];
+        }
+        slotEpoch = new int[capacity];
+        boardLocks = new StampedLock[boardNames.length];
+        recencies = new Recency[boardNames.length];
+        for (int boardId = 0; boardId < boardIds.size(); boardId++) {
+            boardLocks[boardId] = new StampedLock();
+            recencies[boardId] = new Recency();
+            changedBoards.set(boardId);
+            reshapedBoards.set(boardId);
+        }
+        long time = System.currentTimeMillis();
+        for (int slot = 0; slot < nextSlot; slot++) {
+            if (slotPort[slot] != null) { // Released slots have no name
+                touch(slot, time);
+            }
+        }
+    }
+
+    /**
+     * Boards, indexes, ports and aliases of the store for building stores that share them,
+     * from now on this store also copies them before changing them. Caller holds the schema write lock.
+     */
+    SharedSchema shareSchema() {
+        sharedSchema = true;
+        return new SharedSchema(this);
+    }
+
+    /**
+     * Register a port, creating its board and index if needed.
+     * @return slot of the port, the existing one if the port was already registered
+     */
+    int addPort(String board, String index, String port) {
+        Map<String, Integer> ports = addIndex(board, index);
+        Integer slot = ports.get(port);
+        if (slot == null) {
+            ownSchema();
+            ports = indexSlots(board, index);
+            slot = allocateSlot();
+            ports.put(port, slot);
+            int boardId = boardIds.get(board);
+            slotBoard[slot] = boardId;
+            slotIndex[slot] = index;
+            slotPort[slot] = port;
+            SampleRing[] histories = this.histories;
+            if (histories != null && histories[slot] == null) {
+                histories[slot] = new SampleRing(historyCapacity);
+            }
+            StampedLock lock = boardLocks[boardId];
+            long stamp = lock.writeLock();
+            try {
+                touch(slot, System.currentTimeMillis()); // Not received yet, stale from now on
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            reshaped(boardId);
+        }
+        return slot;
+    }
+
+    /**
+     * Register an index of a board without any ports.
+     * @return ports of the index mapped to their slots
+     */
+    Map<String, Integer> addIndex(String board, String index) {
+        Map<String, Integer> ports = indexSlots(board, index);
+        if (ports == null) {
+            ownSchema();
+            ports = new LinkedHashMap<>();
+            slots.computeIfAbsent(board, b -> new LinkedHashMap<>()).put(index, ports);
+            reshaped(boardIds.computeIfAbsent(board, this::newBoardId));
+        }
+        return ports;
+    }
+
+    /**
+     * Make alias another name of an existing index, sharing its ports.
+     * Ports registered under alias before it became one are moved to the index.
+     */
+    void addIndexAlias(String board, String index, String alias) {
+        Map<String, Integer> indexPorts = indexSlots(board, index);
+        if (indexPorts == null || index.equals(alias) || indexSlots(board, alias) == indexPorts) {
+            return;
+        }
+        ownSchema();
+        Map<String, Map<String, Integer>> indexes = slots.get(board);
+        Map<String, Integer> ports = indexes.get(index);
+        Map<String, Integer> aliasPorts = indexes.get(alias);
+        if (aliasPorts != null) {
+            BitSet duplicates = new BitSet();
+            aliasPorts.forEach((port, slot) -> {
+                if (ports.containsKey(port)) {
+                    duplicates.set(slot);
+                }
+            });
+            aliasPorts.forEach((port, slot) -> {
+                if (!duplicates.get(slot)) {
+                    ports.put(port, slot);
+                    slotIndex[slot] = index;
+                }
+            });
+            duplicates.stream().forEach(this::releaseSlot);
+        }
+        indexes.put(alias, ports);
+        indexAliases.computeIfAbsent(board, b -> new HashMap<>()).put(alias, index);
+        reshaped(boardIds.get(board));
+    }
+
+    /**
+     * Make alias another name of an existing port, sharing its slot.
+     * An alias that already names a different port is ignored.
+     */
+    void addPortAlias(String board, String index, String port, String alias) {
+        Map<String, Integer> ports = indexSlots(board, index);
+        Integer slot = ports == null ? null : ports.get(port);
+        if (slot == null || ports.containsKey(alias)) {
+            return;
+        }
+        ownSchema();
+        indexSlots(board, index).put(alias, slot);
+        reshaped(slotBoard[slot]);
+    }
+
+    // Remove a port together with all its aliases
+    void removePort(String board, String index, String port) {
+        Map<String, Integer> ports = indexSlots(board, index);
+        if (ports == null || !ports.containsKey(port)) {
+            return;
+        }
+        ownSchema();
+        ports = indexSlots(board, index);
+        Integer slot = ports.remove(port);
+        ports.values().removeIf(slot::equals);
+        releaseSlot(slot);
+        reshaped(slotBoard[slot]);
+    }
+
+    // Remove all index and port aliases of a board, leaving only real names
+    void removeAliases(String board) {
+        if (!slots.containsKey(board)) {
+            return;
+        }
+        ownSchema();
+        Map<String, Map<String, Integer>> indexes = slots.get(board);
+        Map<String, String> aliases = indexAliases.remove(board);
+        if (aliases != null) {
+            indexes.keySet().removeAll(aliases.keySet());
+        }
+        indexes.values().forEach(ports -> ports.entrySet().removeIf(port -> !isPortName(port.getKey(), port.getValue())));
+        reshaped(boardIds.get(board));
+    }
+
+    boolean isIndexAlias(String board, String index) {
+        Map<String, String> aliases = indexAliases.get(board);
+        return aliases != null && aliases.containsKey(index);
+    }
+
+    // Port key is the name the slot was registered with rather than one of its aliases
+    boolean isPortName(String port, int slot) {
+        return port.equals(slotPort[slot]);
+    }
+
+    boolean hasBoard(String board) {
+        return slots.containsKey(board);
+    }
+
+    /**
+     * @return slot of the port or -1 if it is not registered
+     */
+    int slotOf(String board, String index, String port) {
+        Map<String, Integer> ports = indexSlots(board, index);
+        if (ports == null) {
+            return -1;
+        }
+        Integer slot = ports.get(port);
+        return slot == null ? -1 : slot;
+    }
+
+    boolean isPresent(int slot) {
+        return present.get(slot);
+    }
+
+    // Value of the slot or absent if it never received a value
+    double get(int slot, double absent) {
+        StampedLock lock = boardLocks[slotBoard[slot]];
+        long stamp = lock.tryOptimisticRead();
+        double value = present.get(slot) ? valueAt(slot) : absent;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = present.get(slot) ? valueAt(slot) : absent;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    // Boxed value of the slot, null if it never received a value
+    Double getValue(int slot) {
+        StampedLock lock = boardLocks[slotBoard[slot]];
+        long stamp = lock.tryOptimisticRead();
+        boolean isPresent = present.get(slot);
+        double value = valueAt(slot);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                isPresent = present.get(slot);
+                value = valueAt(slot);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return isPresent ? value : null;
+    }
+
+    // Value of the slot without locking, caller holds the lock of the slot board
+    Double currentValue(int slot) {
+        return present.get(slot) ? valueAt(slot) : null;
+    }
+
+    // Caller holds the write lock of the slot board
+    void set(int slot, double value) {
+        values[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = value;
+        present.set(slot);
+        long time = System.currentTimeMillis();
+        touch(slot, time);
+        SampleRing[] histories = this.histories;
+        PortAggregate[][] aggregates = this.aggregates;
+        if (histories != null || aggregates != null) {
+            if (histories != null) {
+                histories[slot].add(time, value);
+            }
+            PortAggregate[] slotAggregates = aggregates == null ? null : aggregates[slot];
+            if (slotAggregates != null) {
+                for (PortAggregate aggregate : slotAggregates) {
+                    aggregate.add(time, value);
+                }
+            }
+        }
+        changed(slot);
+    }
+
+    // Caller holds the write lock of the slot board
+    void setAbsent(int slot) {
+        present.clear(slot);
+        touch(slot, System.currentTimeMillis());
+        changed(slot);
+    }
+
+    // Record that the slot received its current value again. Caller holds the write lock of the slot board.
+    void touch(int slot) {
+        touch(slot, System.currentTimeMillis());
+    }
+
+    // Time the slot last received a value, or was registered if it never did
+    long receiveTime(int slot) {
+        StampedLock lock = boardLocks[slotBoard[slot]];
+        long stamp = lock.tryOptimisticRead();
+        long time = receiveTimeAt(slot);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                time = receiveTimeAt(slot);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Slots of a board that received nothing since before time, least recently received first.
+     * Only those slots are visited. A wall clock set back may leave slots received after an
+     * earlier one out until they are received again.
+     */
+    int[] staleSlots(int boardId, long before) {
+        StampedLock lock = boardLocks[boardId];
+        long stamp = lock.readLock();
+        try {
+            int[] stale = new int[8];
+            int count = 0;
+            for (int slot = recencies[boardId].oldest; slot >= 0 && receiveTimeAt(slot) < before; slot = link(newerSlots, slot)) {
+                if (count == stale.length) {
+                    stale = Arrays.copyOf(stale, count * 2);
+                }
+                stale[count++] = slot;
+            }
+            return Arrays.copyOf(stale, count);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Set a single value, locking its board
+    void setValue(int slot, Double value) {
+        StampedLock lock = boardLocks[slotBoard[slot]];
+        long stamp = lock.writeLock();
+        try {
+            if (value == null) {
+                setAbsent(slot);
+            } else {
+                set(slot, value);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copy the values of slots, all of the given board, as one consistent state of the board.
+     * Slots without a value are left clear in present.
+     */
+    void copyValues(int boardId, int[] slots, double[] target, BitSet present) {
+        StampedLock lock = boardLocks[boardId];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            readValues(slots, target, present);
+            if (lock.validate(stamp)) {
+                return;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            readValues(slots, target, present);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Keep the last capacity values set to every slot, dropping any history kept so far.
+     * History is disabled if capacity is not positive.
+     */
+    void enableHistory(int capacity) {
+        historyCapacity = Math.max(capacity, 0);
+        if (historyCapacity == 0) {
+            histories = null;
+            return;
+        }
+        SampleRing[] histories = new SampleRing[slotBoard.length];
+        for (int slot = 0; slot < nextSlot; slot++) {
+            histories[slot] = new SampleRing(historyCapacity);
+        }
+        this.histories = histories;
+    }
+
+    /**
+     * @return samples of the slot taken from fromMillis to toMillis inclusive,
+     * empty if history is disabled
+     */
+    PortSamples history(int slot, long fromMillis, long toMillis) {
+        SampleRing[] histories = this.histories;
+        if (histories == null) {
+            return PortSamples.EMPTY;
+        }
+        StampedLock lock = boardLocks[slotBoard[slot]];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            PortSamples samples = histories[slot].copy(fromMillis, toMillis);
+            if (lock.validate(stamp)) {
+                return samples;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return histories[slot].copy(fromMillis, toMillis);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Update aggregate with every value set to slot from now on
+    void addAggregate(int slot, PortAggregate aggregate) {
+        if (aggregates == null) {
+            aggregates = new PortAggregate[slotBoard.length][];
+        }
+        StampedLock lock = boardLocks[slotBoard[slot]];
+        long stamp = lock.writeLock();
+        try {
+            PortAggregate[] slotAggregates = aggregates[slot];
+            slotAggregates = slotAggregates == null ? new PortAggregate[1] : Arrays.copyOf(slotAggregates, slotAggregates.length + 1);
+            slotAggregates[slotAggregates.length - 1] = aggregate;
+            aggregates[slot] = slotAggregates;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void removeAggregate(PortAggregate aggregate) {
+        PortAggregate[][] aggregates = this.aggregates;
+        if (aggregates == null) {
+            return;
+        }
+        for (int slot = 0; slot < nextSlot; slot++) {
+            PortAggregate[] slotAggregates = aggregates[slot];
+            if (slotAggregates == null || !Arrays.asList(slotAggregates).contains(aggregate)) {
+                continue;
+            }
+            PortAggregate[] remaining = Arrays.stream(slotAggregates).filter(a -> a != aggregate).toArray(PortAggregate[]::new);
+            StampedLock lock = boardLocks[slotBoard[slot]];
+            long stamp = lock.writeLock();
+            try {
+                aggregates[slot] = remaining.length == 0 ? null : remaining;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    private void readValues(int[] slots, double[] target, BitSet present) {
+        present.clear();
+        for (int offset = 0; offset < slots.length; offset++) {
+            int slot = slots[offset];
+            if (this.present.get(slot)) {
+                target[offset] = valueAt(slot);
+                present.set(offset);
+            }
+        }
+    }
+
+    private double valueAt(int slot) {
+        return values[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    private long receiveTimeAt(int slot) {
+        return receiveTimes[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    // Set the receive time of the slot and move it to the newest end of its board. Caller holds the board write lock.
+    private void touch(int slot, long time) {
+        receiveTimes[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = time;
+        Recency recency = recencies[slotBoard[slot]];
+        if (recency.newest != slot) {
+            unlink(recency, slot);
+            setLink(olderSlots, slot, recency.newest);
+            if (recency.newest >= 0) {
+                setLink(newerSlots, recency.newest, slot);
+            } else {
+                recency.oldest = slot;
+            }
+            recency.newest = slot;
+        }
+    }
+
+    // Take the slot out of the recency order of its board if it is in it. Caller holds the board write lock.
+    private void unlink(Recency recency, int slot) {
+        int older = link(olderSlots, slot);
+        int newer = link(newerSlots, slot);
+        if (older < 0 && recency.oldest != slot) {
+            return;
+        }
+        if (older >= 0) {
+            setLink(newerSlots, older, newer);
+        } else {
+            recency.oldest = newer;
+        }
+        if (newer >= 0) {
+            setLink(olderSlots, newer, older);
+        } else {
+            recency.newest = older;
+        }
+        setLink(olderSlots, slot, -1);
+        setLink(newerSlots, slot, -1);
+    }
+
+    private static int link(int[][] links, int slot) {
+        return links[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] - 1;
+    }
+
+    private static void setLink(int[][] links, int slot, int linked) {
+        links[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = linked + 1;
+    }
+
+    private void changed(int slot) {
+        dirty.set(slot);
+        changedBoards.set(slotBoard[slot]);
+    }
+
+    void clear() {
+        StampedLock[] locks = boardLocks;
+        long[] stamps = new long[boardIds.size()];
+        for (int boardId = 0; boardId < stamps.length; boardId++) {
+            stamps[boardId] = locks[boardId].writeLock();
+        }
+        try {
+            SampleRing[] histories = this.histories;
+            for (int slot = 0; slot < nextSlot; slot++) {
+                slotEpoch[slot]++;
+                if (histories != null) {
+                    histories[slot].clear();
+                }
+            }
+            present.clear();
+            aggregates = null;
+            olderSlots = emptyLinks(olderSlots);
+            newerSlots = emptyLinks(newerSlots);
+            for (int boardId = 0; boardId < stamps.length; boardId++) {
+                recencies[boardId] = new Recency();
+            }
+        } finally {
+            for (int boardId = 0; boardId < stamps.length; boardId++) {
+                locks[boardId].unlockWrite(stamps[boardId]);
+            }
+        }
+        ownSchema();
+        slots.clear();
+        indexAliases.clear();
+        boardIds.clear();
+        changedBoards.clear();
+        reshapedBoards.clear();
+        cleared = true;
+        generation++;
+        dirty.clear();
+        schemaDirty = true;
+        freeCount = 0;
+        nextSlot = 0;
+    }
+
+    // Id of a board in the board locks and change bitsets, -1 if the board does not exist
+    int boardId(String board) {
+        Integer boardId = boardIds.get(board);
+        return boardId == null ? -1 : boardId;
+    }
+
+    // Lock guarding the values of a board
+    StampedLock boardLock(int boardId) {
+        return boardLocks[boardId];
+    }
+
+    int slotBoard(int slot) {
+        return slotBoard[slot];
+    }
+
+    boolean hasChanges() {
+        return cleared || !changedBoards.isEmpty();
+    }
+
+    // Whether the board changed since the last call, clearing its change
+    boolean takeChanged(int boardId) {
+        return changedBoards.getAndClear(boardId);
+    }
+
+    boolean isReshaped(int boardId) {
+        return reshapedBoards.get(boardId);
+    }
+
+    void clearReshaped() {
+        reshapedBoards.clear();
+        cleared = false;
+    }
+
+    // Slots written since they were last written to a delta, owned by the store
+    AtomicBitSet dirtySlots() {
+        return dirty;
+    }
+
+    boolean isSchemaDirty() {
+        return schemaDirty;
+    }
+
+    void clearDirty() {
+        dirty.clear();
+        schemaDirty = false;
+    }
+
+    // Changes whenever the slot is released, a slot is the same port as long as its epoch is
+    int epoch(int slot) {
+        return slotEpoch[slot];
+    }
+
+    String boardName(int slot) {
+        return boardNames[slotBoard[slot]];
+    }
+
+    String indexName(int slot) {
+        return slotIndex[slot];
+    }
+
+    String portName(int slot) {
+        return slotPort[slot];
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    private void reshaped(int boardId) {
+        changedBoards.set(boardId);
+        reshapedBoards.set(boardId);
+        schemaDirty = true;
+        generation++;
+    }
+
+    private int newBoardId(String board) {
+        int boardId = boardIds.size();
+        if (boardId == boardNames.length) {
+            boardNames = Arrays.copyOf(boardNames, boardNames.length * 2);
+            boardLocks = Arrays.copyOf(boardLocks, boardLocks.length * 2);
+            recencies = Arrays.copyOf(recencies, recencies.length * 2);
+        }
+        boardNames[boardId] = board;
+        if (boardLocks[boardId] == null) {
+            boardLocks[boardId] = new StampedLock();
+        }
+        recencies[boardId] = new Recency();
+        return boardId;
+    }
+
+    // Number of slots currently in use
+    int size() {
+        return nextSlot - freeCount;
+    }
+
+    // Every slot in use is below the limit
+    int slotLimit() {
+        return nextSlot;
+    }
+
+    Map<String, Map<String, Map<String, Integer>>> schema() {
+        return slots;
+    }
+
+    Map<String, Integer> indexSlots(String board, String index) {
+        Map<String, Map<String, Integer>> indexes = slots.get(board);
+        return indexes == null ? null : indexes.get(index);
+    }
+
+    /**
+     * @return read-only, read-through view of the store shaped like board name -> board index -> ports -> values
+     */
+    Map<String, Map<String, Map<String, Double>>> view() {
+        return new BoardsView();
+    }
+
+    // Copy the schema before changing it while it is shared, index aliases keep sharing the ports of their index
+    private void ownSchema() {
+        if (!sharedSchema) {
+            return;
+        }
+        Map<String, Map<String, Map<String, Integer>>> slots = new LinkedHashMap<>();
+        this.slots.forEach((board, indexes) -> {
+            Map<Map<String, Integer>, Map<String, Integer>> copies = new IdentityHashMap<>();
+            Map<String, Map<String, Integer>> indexesCopy = new LinkedHashMap<>();
+            indexes.forEach((index, ports) -> indexesCopy.put(index, copies.computeIfAbsent(ports, LinkedHashMap::new)));
+            slots.put(board, indexesCopy);
+        });
+        Map<String, Map<String, String>> indexAliases = new HashMap<>();
+        this.indexAliases.forEach((board, aliases) -> indexAliases.put(board, new HashMap<>(aliases)));
+        this.slots = slots;
+        this.indexAliases = indexAliases;
+        boardIds = new HashMap<>(boardIds);
+        boardNames = boardNames.clone();
+        slotBoard = slotBoard.clone();
+        slotIndex = slotIndex.clone();
+        slotPort = slotPort.clone();
+        freeSlots = freeSlots.clone();
+        sharedSchema = false;
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (nextSlot == capacity) {
+            grow();
+        }
+        if (nextSlot == slotBoard.length) {
+            slotBoard = Arrays.copyOf(slotBoard, slotBoard.length + CHUNK_SIZE);
+            slotIndex = Arrays.copyOf(slotIndex, slotIndex.length + CHUNK_SIZE);
+            slotPort = Arrays.copyOf(slotPort, slotPort.length + CHUNK_SIZE);
+            if (histories != null) {
+                histories = Arrays.copyOf(histories, slotBoard.length);
+            }
+            if (aggregates != null) {
+                aggregates = Arrays.copyOf(aggregates, slotBoard.length);
+            }
+        }
+        return nextSlot++;
+    }
+
+    /**
+     * Make room for one more slot in the values, receive times, links and epochs of this store.
+     * A full last chunk is followed by a new one. A shorter last chunk is doubled up to a full one,
+     * replacing it while every board is locked, so no writer that only holds its board lock writes to the old one.
+     */
+    private void grow() {
+        int lastLength = values[values.length - 1].length;
+        if (lastLength == CHUNK_SIZE) {
+            values = addChunk(values, new double[CHUNK_SIZE]);
+            receiveTimes = addChunk(receiveTimes, new long[CHUNK_SIZE]);
+            olderSlots = addChunk(olderSlots, new int[CHUNK_SIZE]);
+            newerSlots = addChunk(newerSlots, new int[CHUNK_SIZE]);
+            capacity += CHUNK_SIZE;
+            slotEpoch = Arrays.copyOf(slotEpoch, capacity);
+            return;
+        }
+        int length = Math.min(Math.max(lastLength * 2, 8), CHUNK_SIZE);
+        StampedLock[] locks = boardLocks;
+        long[] stamps = new long[boardIds.size()];
+        for (int boardId = 0; boardId < stamps.length; boardId++) {
+            stamps[boardId] = locks[boardId].writeLock();
+        }
+        try {
+            int last = values.length - 1;
+            double[][] values = this.values.clone();
+            values[last] = Arrays.copyOf(values[last], length);
+            this.values = values;
+            long[][] receiveTimes = this.receiveTimes.clone();
+            receiveTimes[last] = Arrays.copyOf(receiveTimes[last], length);
+            this.receiveTimes = receiveTimes;
+            olderSlots = withLastChunk(olderSlots, length);
+            newerSlots = withLastChunk(newerSlots, length);
+            capacity += length - lastLength;
+            slotEpoch = Arrays.copyOf(slotEpoch, capacity);
+        } finally {
+            for (int boardId = 0; boardId < stamps.length; boardId++) {
+                locks[boardId].unlockWrite(stamps[boardId]);
+            }
+        }
+    }
+
+    private static <T> T[] addChunk(T[] chunks, T chunk) {
+        T[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+        grown[chunks.length] = chunk;
+        return grown;
+    }
+
+    private static int[][] withLastChunk(int[][] chunks, int length) {
+        int[][] grown = chunks.clone();
+        grown[grown.length - 1] = Arrays.copyOf(grown[grown.length - 1], length);
+        return grown;
+    }
+
+    // Chunks as long as the given ones with every slot unlinked
+    private static int[][] emptyLinks(int[][] chunks) {
+        int[][] empty = new int[chunks.length][];
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            empty[chunk] = new int[chunks[chunk].length];
+        }
+        return empty;
+    }
+
+    private void releaseSlot(int slot) {
+        StampedLock lock = boardLocks[slotBoard[slot]];
+        long stamp = lock.writeLock();
+        try {
+            slotEpoch[slot]++;
+            present.clear(slot);
+            SampleRing[] histories = this.histories;
+            if (histories != null) {
+                histories[slot].clear();
+            }
+            PortAggregate[][] aggregates = this.aggregates;
+            if (aggregates != null) {
+                aggregates[slot] = null;
+            }
+            unlink(recencies[slotBoard[slot]], slot);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        dirty.clear(slot);
+        slotIndex[slot] = null;
+        slotPort[slot] = null;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    // Ends of the recency order of a board, guarded by the board lock
+    private static final class Recency {
+        private int oldest = -1;
+        private int newest = -1;
+    }
+
+    // Schema of a store at the time it was shared, never changed afterwards
+    static final class SharedSchema {
+        private final Map<String, Map<String, Map<String, Integer>>> slots;
+        private final Map<String, Map<String, String>> indexAliases;
+        private final Map<String, Integer> boardIds;
+        private final String[] boardNames;
+        private final int[] slotBoard;
+        private final String[] slotIndex;
+        private final String[] slotPort;
+        private final int[] freeSlots;
+        private final int freeCount;
+        private final int nextSlot;
+
+        private SharedSchema(SensorStore store) {
+            slots = store.slots;
+            indexAliases = store.indexAliases;
+            boardIds = store.boardIds;
+            boardNames = store.boardNames;
+            slotBoard = store.slotBoard;
+            slotIndex = store.slotIndex;
+            slotPort = store.slotPort;
+            freeSlots = store.freeSlots;
+            freeCount = store.freeCount;
+            nextSlot = store.nextSlot;
+        }
+    }
+
+    private <T> T readSchema(Supplier<T> read) {
+        Lock lock = schemaLock.readLock();
+        lock.lock();
+        try {
+            return read.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Views look names up under the schema read lock and hand out copies of key sets,
+    // so they can be read while ports are added or removed
+    private final class BoardsView extends AbstractMap<String, Map<String, Map<String, Double>>> {
+        @Override
+        public Map<String, Map<String, Double>> get(Object board) {
+            return readSchema(() -> slots.containsKey(board) ? new IndexesView((String) board) : null);
+        }
+
+        @Override
+        public boolean containsKey(Object board) {
+            return readSchema(() -> slots.containsKey(board));
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return readSchema(() -> Collections.unmodifiableSet(new LinkedHashSet<>(slots.keySet())));
+        }
+
+        @Override
+        public void clear() {
+            Lock lock = schemaLock.writeLock();
+            lock.lock();
+            try {
+                SensorStore.this.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Set<Entry<String, Map<String, Map<String, Double>>>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Map<String, Map<String, Double>>>> iterator() {
+                    Iterator<String> boards = keySet().iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return boards.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Map<String, Map<String, Double>>> next() {
+                            String board = boards.next();
+                            return new SimpleImmutableEntry<>(board, new IndexesView(board));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return readSchema(slots::size);
+                }
+            };
+        }
+    }
+
+    private final class IndexesView extends AbstractMap<String, Map<String, Double>> {
+        private final String board;
+
+        private IndexesView(String board) {
+            this.board = board;
+        }
+
+        private Map<String, Map<String, Integer>> indexes() {
+            return slots.getOrDefault(board, Collections.emptyMap());
+        }
+
+        @Override
+        public Map<String, Double> get(Object index) {
+            return readSchema(() -> indexes().containsKey(index) ? new PortsView(board, (String) index) : null);
+        }
+
+        @Override
+        public boolean containsKey(Object index) {
+            return readSchema(() -> indexes().containsKey(index));
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return readSchema(() -> Collections.unmodifiableSet(new LinkedHashSet<>(indexes().keySet())));
+        }
+
+        @Override
+        public Set<Entry<String, Map<String, Double>>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Map<String, Double>>> iterator() {
+                    Iterator<String> indexes = keySet().iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return indexes.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Map<String, Double>> next() {
+                            String index = indexes.next();
+                            return new SimpleImmutableEntry<>(index, new PortsView(board, index));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return readSchema(() -> indexes().size());
+                }
+            };
+        }
+    }
+
+    private final class PortsView extends AbstractMap<String, Double> {
+        private final String board;
+        private final String index;
+
+        private PortsView(String board, String index) {
+            this.board = board;
+            this.index = index;
+        }
+
+        private Map<String, Integer> ports() {
+            Map<String, Integer> ports = indexSlots(board, index);
+            return ports == null ? Collections.emptyMap() : ports;
+        }
+
+        @Override
+        public Double get(Object port) {
+            return readSchema(() -> {
+                Integer slot = ports().get(port);
+                return slot == null ? null : getValue(slot);
+            });
+        }
+
+        @Override
+        public boolean containsKey(Object port) {
+            return readSchema(() -> ports().containsKey(port));
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return readSchema(() -> Collections.unmodifiableSet(new LinkedHashSet<>(ports().keySet())));
+        }
+
+        @Override
+        public Set<Entry<String, Double>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Double>> iterator() {
+                    return readSchema(() -> {
+                        List<Entry<String, Double>> entries = new ArrayList<>();
+                        ports().forEach((port, slot) -> entries.add(new SimpleImmutableEntry<>(port, getValue(slot))));
+                        return Collections.unmodifiableList(entries).iterator();
+                    });
+                }
+
+                @Override
+                public int size() {
+                    return readSchema(() -> ports().size());
+                }
+            };
+        }
+    }
+}
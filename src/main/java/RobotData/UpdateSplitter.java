@@ -0,0 +1,135 @@
+package RobotData;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Finds where the values of the boards of an update start and end without parsing them,
+ * so every board can be parsed on its own.
+ * Only plain json objects of board objects with board names free of escapes are split,
+ * anything else is left to the lenient reader of the update.
+ */
+final class UpdateSplitter {
+
+    private UpdateSplitter() {
+    }
+
+    /**
+     * @return board name -> start and end of every value of the board in json, boards in the order
+     * they first appear, null if json is not an update it can split
+     */
+    static Map<String, List<int[]>> boardRanges(CharSequence json) {
+        Map<String, List<int[]>> boards = new LinkedHashMap<>();
+        int length = json.length();
+        int i = skipWhitespace(json, 0);
+        if (i == length || json.charAt(i) != '{') {
+            return null;
+        }
+        i = skipWhitespace(json, i + 1);
+        if (i < length && json.charAt(i) == '}') {
+            return skipWhitespace(json, i + 1) == length ? boards : null;
+        }
+        while (i < length && json.charAt(i) == '"') {
+            int nameEnd = i + 1;
+            while (nameEnd < length && json.charAt(nameEnd) != '"') {
+                char c = json.charAt(nameEnd);
+                if (c == '\\' || c > 0x7f) { // Left to the reader to decode
+                    return null;
+                }
+                nameEnd++;
+            }
+            if (nameEnd == length) {
+                return null;
+            }
+            String boardName = json.subSequence(i + 1, nameEnd).toString();
+            i = skipWhitespace(json, nameEnd + 1);
+            if (i == length || json.charAt(i) != ':') {
+                return null;
+            }
+            int start = skipWhitespace(json, i + 1);
+            int end = objectEnd(json, start);
+            if (end < 0) {
+                return null;
+            }
+            boards.computeIfAbsent(boardName, b -> new ArrayList<>()).add(new int[]{start, end});
+            i = skipWhitespace(json, end);
+            if (i < length && json.charAt(i) == '}') {
+                return skipWhitespace(json, i + 1) == length ? boards : null;
+            }
+            if (i == length || json.charAt(i) != ',') {
+                return null;
+            }
+            i = skipWhitespace(json, i + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Bytes of UTF-8 json between the position and limit of the buffer as chars, enough for splitting
+     * since every byte of a character beyond ASCII is above 0x7f. Ranges are relative to the position.
+     */
+    static CharSequence ascii(ByteBuffer json) {
+        int position = json.position();
+        int length = json.remaining();
+        return new CharSequence() {
+            @Override
+            public int length() {
+                return length;
+            }
+
+            @Override
+            public char charAt(int index) {
+                return (char) (json.get(position + index) & 0xff);
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                byte[] bytes = new byte[end - start];
+                for (int i = start; i < end; i++) {
+                    bytes[i - start] = json.get(position + i);
+                }
+                return new String(bytes, StandardCharsets.US_ASCII);
+            }
+        };
+    }
+
+    // End of the object starting at start, -1 if there is none or it uses lenient syntax
+    private static int objectEnd(CharSequence json, int start) {
+        int length = json.length();
+        if (start == length || json.charAt(start) != '{') {
+            return -1;
+        }
+        int depth = 0;
+        for (int i = start; i < length; i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                for (i++; i < length && json.charAt(i) != '"'; i++) {
+                    if (json.charAt(i) == '\\') {
+                        i++;
+                    }
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return i + 1;
+                }
+            } else if (c == '\'' || c == '/' || c == '#') { // Strings or comments braces may hide in
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(CharSequence json, int i) {
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,169 @@
+package RobotData;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Binary encoding of port values.
+ * Every real port gets a wire id, its position when boards, indexes and ports are sorted by name,
+ * so two robots with the same ports agree on the ids whatever order the ports were added in.
+ * The schema version is a hash of the sorted names, a message is only applied by a receiver
+ * whose ports hash the same.
+ * <p>
+ * A message is little endian:
+ * <pre>
+ * int magic, long schema version, int count, count times (int wire id, double value)
+ * </pre>
+ * A port without a value is sent as NaN.
+ */
+final class WireLayout {
+
+    static final int MAGIC = 0x31445352; // "RSD1"
+    static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    static final int ENTRY_BYTES = Integer.BYTES + Double.BYTES;
+
+    // Store generation the layout was built from
+    final long generation;
+    final long schemaVersion;
+    // Store slot of every wire id
+    private final int[] slots;
+
+    private WireLayout(long generation, long schemaVersion, int[] slots) {
+        this.generation = generation;
+        this.schemaVersion = schemaVersion;
+        this.slots = slots;
+    }
+
+    // Caller holds the schema read lock of the store
+    static WireLayout of(SensorStore store) {
+        List<Integer> slots = new ArrayList<>();
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        for (String board : new TreeSet<>(store.schema().keySet())) {
+            Map<String, Map<String, Integer>> indexes = store.schema().get(board);
+            hash = hash(hash, board);
+            for (String index : new TreeSet<>(indexes.keySet())) {
+                if (store.isIndexAlias(board, index)) {
+                    continue;
+                }
+                hash = hash(hash, index);
+                Map<String, Integer> ports = indexes.get(index);
+                for (String port : new TreeSet<>(ports.keySet())) {
+                    int slot = ports.get(port);
+                    if (store.isPortName(port, slot)) {
+                        hash = hash(hash, port);
+                        slots.add(slot);
+                    }
+                }
+            }
+        }
+        return new WireLayout(store.generation(), hash, slots.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private static long hash(long hash, String name) {
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return (hash ^ 0xff) * 0x100000001b3L; // Separates names
+    }
+
+    int size() {
+        return slots.length;
+    }
+
+    // Bytes of a message holding every port
+    int messageBytes() {
+        return HEADER_BYTES + ENTRY_BYTES * slots.length;
+    }
+
+    /**
+     * Write the values of all ports at the position of buffer.
+     * @return bytes written
+     * @throws BufferOverflowException if buffer has less than messageBytes() remaining
+     */
+    int encode(SensorStore store, ByteBuffer buffer) {
+        if (buffer.remaining() < messageBytes()) {
+            throw new BufferOverflowException();
+        }
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putLong(schemaVersion).putInt(slots.length);
+        for (int id = 0; id < slots.length; id++) {
+            buffer.putInt(id).putDouble(store.get(slots[id], Double.NaN));
+        }
+        buffer.order(order);
+        return messageBytes();
+    }
+
+    /**
+     * Apply the values of a message at the position of buffer, locking one board at a time.
+     * Changed values are added to changes unless it is null.
+     * @return false if the message was written for other ports, it is skipped
+     * @throws IllegalArgumentException if the buffer does not hold a message
+     */
+    boolean decode(SensorStore store, ByteBuffer buffer, List<PortChange> changes) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a sensor values message");
+            }
+            long version = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() / ENTRY_BYTES < count) {
+                throw new IllegalArgumentException("Sensor values message is truncated");
+            }
+            if (version != schemaVersion) {
+                buffer.position(buffer.position() + count * ENTRY_BYTES);
+                return false;
+            }
+            apply(store, buffer, count, changes);
+            return true;
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    private void apply(SensorStore store, ByteBuffer buffer, int count, List<PortChange> changes) {
+        int boardId = -1;
+        StampedLock boardLock = null;
+        long stamp = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                int id = buffer.getInt();
+                double value = buffer.getDouble();
+                if (id < 0 || id >= slots.length) {
+                    throw new IllegalArgumentException("Unknown wire id " + id);
+                }
+                int slot = slots[id];
+                if (store.slotBoard(slot) != boardId) { // Ids of a board are consecutive
+                    if (boardLock != null) {
+                        boardLock.unlockWrite(stamp);
+                    }
+                    boardId = store.slotBoard(slot);
+                    boardLock = store.boardLock(boardId);
+                    stamp = boardLock.writeLock();
+                }
+                if (changes != null) {
+                    Double oldValue = store.currentValue(slot);
+                    Double newValue = Double.isNaN(value) ? null : value;
+                    if (!Objects.equals(oldValue, newValue)) {
+                        changes.add(new PortChange(store.boardName(slot), store.indexName(slot), store.portName(slot), oldValue, newValue));
+                    }
+                }
+                if (Double.isNaN(value)) {
+                    store.setAbsent(slot);
+                } else {
+                    store.set(slot, value);
+                }
+            }
+        } finally {
+            if (boardLock != null) {
+                boardLock.unlockWrite(stamp);
+            }
+        }
+    }
+}
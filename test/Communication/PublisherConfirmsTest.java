@@ -0,0 +1,112 @@
+package Communication;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class PublisherConfirmsTest {
+
+    private final AtomicLong nextSequenceNumber = new AtomicLong(1);
+    private final List<String> published = new ArrayList<>();
+    private final List<ConfirmListener> listeners = new ArrayList<>();
+    private final List<ShutdownListener> shutdownListeners = new ArrayList<>();
+
+    // Channel that only records what is published, confirms are handed to the listeners by the test
+    private final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getNextPublishSeqNo":
+                        return nextSequenceNumber.get();
+                    case "basicPublish":
+                        nextSequenceNumber.incrementAndGet();
+                        published.add(new String((byte[]) args[args.length - 1]));
+                        return null;
+                    case "addConfirmListener":
+                        listeners.add((ConfirmListener) args[0]);
+                        return null;
+                    case "addShutdownListener":
+                        shutdownListeners.add((ShutdownListener) args[0]);
+                        return null;
+                    default:
+                        return null;
+                }
+            });
+
+    @Test
+    public void confirmsTest() throws Exception {
+        PublisherConfirms confirms = new PublisherConfirms(channel, 3, 10_000);
+        assertEquals(List.of(confirms), listeners);
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().build();
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            sent.add(confirms.publish("Data", properties, ("m" + i).getBytes()));
+        }
+        assertEquals(List.of("m1", "m2", "m3"), published);
+
+        // The window is full until a message is confirmed
+        CompletableFuture<CompletableFuture<Void>> fourth = CompletableFuture.supplyAsync(() -> {
+            try {
+                return confirms.publish("Data", properties, "m4".getBytes());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try {
+            fourth.get(100, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException ignored) {
+        }
+        confirms.handleAck(2, true);
+        assertTrue(sent.get(0).isDone() && sent.get(1).isDone());
+        assertFalse(sent.get(2).isDone());
+        sent.add(fourth.get(1, TimeUnit.SECONDS));
+
+        confirms.handleNack(3, false);
+        try {
+            sent.get(2).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        confirms.handleAck(3, false); // Already confirmed
+        confirms.failOutstanding(new IOException("closed"));
+        assertTrue(sent.get(3).isCompletedExceptionally());
+        assertEquals(List.of("m1", "m2", "m3", "m4"), published);
+    }
+
+    @Test
+    public void windowTest() throws Exception {
+        PublisherConfirms confirms = new PublisherConfirms(channel, 1, 50);
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().build();
+        CompletableFuture<Void> first = confirms.publish("Data", properties, "m1".getBytes());
+        try { // Gives up on a window that stays full
+            confirms.publish("Data", properties, "m2".getBytes());
+            fail();
+        } catch (IOException ignored) {
+        }
+
+        // A larger window takes more messages at once, a shut down channel fails them and frees the window
+        confirms.setWindow(2, 50);
+        CompletableFuture<Void> second = confirms.publish("Data", properties, "m2".getBytes());
+        shutdownListeners.forEach(listener -> listener.shutdownCompleted(new ShutdownSignalException(false, false, null, channel)));
+        assertTrue(first.isCompletedExceptionally() && second.isCompletedExceptionally());
+        confirms.publish("Data", properties, "m3".getBytes());
+        confirms.publish("Data", properties, "m4".getBytes());
+        assertEquals(List.of("m1", "m2", "m3", "m4"), published);
+    }
+}
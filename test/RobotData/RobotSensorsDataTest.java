@@ -1,13 +1,34 @@
 package RobotData;
 
+import Communication.QueueNameEnum;
+import Communication.TrafficRecorder;
+import Communication.TrafficReplayer;
+import com.rabbitmq.client.DeliverCallback;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import static org.junit.Assert.*;
 
@@ -45,6 +66,60 @@ public class RobotSensorsDataTest {
     }
 
 
+    @Test
+    public void snapshotTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"A\"]}, \"GrovePi\": [\"D2\"]}");
+        SensorSnapshot before = robotSensorsData.snapshot();
+
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"A\": 3}}}");
+        SensorSnapshot after = robotSensorsData.snapshot();
+        assertTrue(after.getVersion() > before.getVersion());
+        // old snapshot is not affected by the update
+        assertNull(before.getValue("EV3", "_1", "A"));
+        assertEquals((Double) 3.0, after.getValue("EV3", "_1", "A"));
+        assertEquals(robotSensorsData.getPortsMap(), after.getPortsMap());
+
+        // nothing changed, same snapshot is kept
+        robotSensorsData.updateBoardMapValues("{\"Unknown\": {\"_1\": {\"A\": 3}}}");
+        assertSame(after, robotSensorsData.snapshot());
+        assertEquals(robotSensorsData.getPortsMap(), robotSensorsData.deepCopy().getPortsMap());
+
+        // values are only set through the robot data, not its ports map
+        try {
+            robotSensorsData.getPortsMap().get("EV3").get("_1").put("A", 4.0);
+            fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+    }
+
+    @Test
+    public void deltaJsonTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"A\", \"B\"]}, \"GrovePi\": [\"D2\"]}");
+        RobotSensorsData receiver = new RobotSensorsData();
+
+        // first delta holds every port
+        String delta = robotSensorsData.toDeltaJson();
+        assertEquals("{\"Sequence\":0,\"Full\":true,\"Values\":{\"EV3\":{\"_1\":{\"A\":null,\"B\":null}},\"GrovePi\":{\"_1\":{\"D2\":null}}}}", delta);
+        assertTrue(receiver.applyDeltaJson(delta));
+
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"B\": 2.5}}}");
+        delta = robotSensorsData.toDeltaJson();
+        assertEquals("{\"Sequence\":1,\"Full\":false,\"Values\":{\"EV3\":{\"_1\":{\"B\":2.5}}}}", delta);
+        assertTrue(receiver.applyDeltaJson(delta));
+        assertEquals(robotSensorsData.getPortsMap(), receiver.getPortsMap());
+
+        // receiver skips deltas after a missing one until a full delta arrives
+        robotSensorsData.updateBoardMapValues("{\"GrovePi\": {\"_1\": {\"D2\": 1}}}");
+        robotSensorsData.toDeltaJson();
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"A\": 1}}}");
+        assertFalse(receiver.applyDeltaJson(robotSensorsData.toDeltaJson()));
+        robotSensorsData.requestFullDelta();
+        assertTrue(receiver.applyDeltaJson(robotSensorsData.toDeltaJson()));
+        assertEquals(robotSensorsData.getPortsMap(), receiver.getPortsMap());
+    }
+
     @Test
     public void updateBoardMapValuesTest() {
         robotSensorsData = new RobotSensorsData();
@@ -102,6 +177,767 @@ public class RobotSensorsDataTest {
     }
 
 
+    @Test
+    public void portsMapIsViewOverStoreTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"A\", \"B\"]}}");
+        Map<String, Double> ports = robotSensorsData.getPortsAndValues("EV3", "_1");
+        assertNull(ports.get("A"));
+
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"A\": 4.5}}}");
+        // view sees the update without being fetched again
+        assertEquals((Double) 4.5, ports.get("A"));
+        assertEquals("{\"EV3\":{\"_1\":{\"A\":4.5}}}", robotSensorsData.toJson());
+
+        robotSensorsData.removeFromBoardsMap("{\"EV3\": {\"1\": [\"A\"]}}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"C\"]}}");
+        // slot of A is reused by C and starts without a value
+        assertFalse(ports.containsKey("A"));
+        assertTrue(ports.containsKey("C"));
+        assertNull(ports.get("C"));
+    }
+
+    @Test
+    public void updateBoardMapValuesMirrorsNicknamesTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"Nick1\": [\"UV3\"]}, \"GrovePi\": [\"D2\"]}");
+
+        robotSensorsData.updateBoardMapValues("{\"Unknown\": {\"_1\": {\"A\": 1}}, \"EV3\": {\"_1\": {\"_2\": 7}, \"_9\": {\"A\": 1}}}");
+        assertTrue(robotSensorsData.isUpdated());
+        assertEquals((Double) 7.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("_2"));
+        assertEquals((Double) 7.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("UV3"));
+        assertEquals((Double) 7.0, robotSensorsData.getPortsAndValues("EV3", "Nick1").get("_2"));
+        assertEquals((Double) 7.0, robotSensorsData.getPortsAndValues("EV3", "Nick1").get("UV3"));
+        assertNull(robotSensorsData.getPortsAndValues("EV3", "_9"));
+        assertNull(robotSensorsData.getPortsAndValues("GrovePi", "_1").get("D2"));
+    }
+
+    @Test
+    public void portHandleTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"Nick1\": [\"UV3\", \"A\"]}}");
+
+        PortHandle handle = robotSensorsData.getPortHandle("EV3", "Nick1", "UV3");
+        assertEquals("_1", handle.getIndex());
+        assertEquals("_2", handle.getPort());
+        assertFalse(handle.isPresent());
+        assertTrue(Double.isNaN(handle.getDouble()));
+
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 5}}}");
+        assertEquals(5.0, handle.getDouble(), 0);
+
+        // writes reach the port under all of its names
+        handle.set(6.5);
+        assertTrue(robotSensorsData.isUpdated());
+        assertEquals((Double) 6.5, robotSensorsData.getPortsAndValues("EV3", "Nick1").get("UV3"));
+        assertEquals((Double) 6.5, robotSensorsData.getPortsAndValues("EV3", "_1").get("_2"));
+        assertEquals((Double) 6.5, robotSensorsData.publishSnapshot().getValue("EV3", "_1", "_2"));
+
+        // handle of another port stays valid, removed port fails fast
+        PortHandle other = robotSensorsData.getPortHandle("EV3", "1", "A");
+        robotSensorsData.removeFromBoardsMap("{\"EV3\": {\"Nick1\": [\"UV3\"]}}");
+        assertFalse(handle.isValid());
+        assertTrue(other.isValid());
+        try {
+            handle.set(1);
+            fail("Handle of removed port was used");
+        } catch (IllegalStateException ignore) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void portHandleOfMissingPortTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"A\"]}}");
+        robotSensorsData.getPortHandle("EV3", "1", "B");
+    }
+
+    @Test
+    public void nicknamesShareValueTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"A\"]}}");
+
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"Nick1\": {\"UV3\": 8, \"A\": 1}}}");
+        assertEquals((Double) 8.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("_2"));
+        assertEquals((Double) 8.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("UV3"));
+        assertEquals((Double) 1.0, robotSensorsData.getPortsAndValues("EV3", "Nick1").get("A"));
+
+        assertEquals("{\"EV3\":{\"_1\":{\"_2\":8.0,\"UV3\":8.0,\"A\":1.0},\"Nick1\":{\"_2\":8.0,\"UV3\":8.0,\"A\":1.0}}}",
+                robotSensorsData.toJson());
+        assertEquals("{\"EV3\":{\"_1\":{\"_2\":8.0,\"A\":1.0}}}", robotSensorsData.toJson(false));
+        assertEquals(robotSensorsData.getPortsMap(), robotSensorsData.deepCopy().getPortsMap());
+
+        // removing the port by its nickname removes it under all names
+        robotSensorsData.removeFromBoardsMap("{\"EV3\": {\"Nick1\": [\"UV3\"]}}");
+        assertEquals(Set.of("A"), robotSensorsData.getPorts("EV3", "_1"));
+        assertEquals(Set.of("A"), robotSensorsData.getPorts("EV3", "Nick1"));
+    }
+
+    @Test
+    public void schemaGenerationTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\"]}, \"GrovePi\": [\"D2\"]}");
+        long generation = robotSensorsData.getSchemaGeneration();
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 1}}}");
+        assertEquals(generation, robotSensorsData.getSchemaGeneration());
+        assertEquals(generation, robotSensorsData.snapshot().getSchemaGeneration());
+
+        // nicknames given after the ports were added become aliases of the existing ports
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        assertTrue(robotSensorsData.getSchemaGeneration() > generation);
+        assertEquals((Double) 1.0, robotSensorsData.getPortsAndValues("EV3", "Nick1").get("UV3"));
+
+        // renaming replaces the old aliases
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick2\", \"2\": {\"Name\": \"UV4\"}}]}");
+        assertEquals(Set.of("_1", "Nick2"), robotSensorsData.getBoardIndexes("EV3"));
+        assertEquals(Set.of("_2", "UV4"), robotSensorsData.getPorts("EV3", "_1"));
+        assertEquals(Set.of("D2"), robotSensorsData.getPorts("GrovePi", "_1"));
+    }
+
+    @Test
+    public void concurrentUpdatesOfBoardsAreAtomicTest() throws InterruptedException {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"A\", \"B\"]}, \"GrovePi\": {\"1\": [\"A\", \"B\"]}}");
+        int updates = 2000;
+        Thread[] writers = new Thread[2];
+        String[] boards = {"EV3", "GrovePi"};
+        for (int w = 0; w < writers.length; w++) {
+            String board = boards[w];
+            writers[w] = new Thread(() -> {
+                for (int i = 1; i <= updates; i++) {
+                    robotSensorsData.updateBoardMapValues(
+                            String.format("{\"%s\": {\"_1\": {\"A\": %d, \"B\": %d}}}", board, i, i));
+                }
+            });
+        }
+        PortHandle a = robotSensorsData.getPortHandle("EV3", "1", "A");
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        // values of one update of a board are seen together
+        while (writers[0].isAlive() || writers[1].isAlive()) {
+            SensorSnapshot snapshot = robotSensorsData.snapshot();
+            for (String board : boards) {
+                assertEquals(snapshot.getValue(board, "_1", "A"), snapshot.getValue(board, "_1", "B"));
+            }
+            double before = a.getDouble();
+            Double after = robotSensorsData.getPortsAndValues("EV3", "_1").get("A");
+            assertTrue(Double.isNaN(before) || before <= after);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        SensorSnapshot snapshot = robotSensorsData.publishSnapshot();
+        for (String board : boards) {
+            assertEquals((Double) (double) updates, snapshot.getValue(board, "_1", "A"));
+            assertEquals((Double) (double) updates, snapshot.getValue(board, "_1", "B"));
+        }
+        assertTrue(robotSensorsData.isUpdated());
+    }
+
+    @Test
+    public void portListenerTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"3\"]}, \"GrovePi\": [\"D2\"]}");
+        java.util.List<java.util.List<PortChange>> all = new java.util.ArrayList<>();
+        java.util.List<java.util.List<PortChange>> uv3 = new java.util.ArrayList<>();
+        java.util.List<Runnable> pending = new java.util.ArrayList<>();
+        robotSensorsData.setListenerExecutor(pending::add);
+        PortListener allListener = all::add;
+        robotSensorsData.addPortListener(null, null, null, allListener);
+        robotSensorsData.addPortListener("EV3", "Nick1", "UV3", uv3::add);
+
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 1, \"_3\": 2}}, \"GrovePi\": {\"_1\": {\"D2\": 3}}}");
+        assertTrue(all.isEmpty()); // delivered on the executor
+        pending.forEach(Runnable::run);
+        pending.clear();
+        assertEquals(1, all.size()); // one batch per update
+        assertEquals(3, all.get(0).size());
+        assertEquals(1, uv3.size());
+        PortChange change = uv3.get(0).get(0);
+        assertEquals("_1", change.getIndex());
+        assertEquals("_2", change.getPort());
+        assertNull(change.getOldValue());
+        assertEquals((Double) 1.0, change.getNewValue());
+
+        // unchanged values are not reported
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"Nick1\": {\"UV3\": 1, \"_3\": 5}}}");
+        pending.forEach(Runnable::run);
+        pending.clear();
+        assertEquals(2, all.size());
+        assertEquals(1, all.get(1).size());
+        assertEquals((Double) 2.0, all.get(1).get(0).getOldValue());
+        assertEquals(1, uv3.size());
+
+        robotSensorsData.getPortHandle("EV3", "Nick1", "UV3").set(4);
+        pending.forEach(Runnable::run);
+        pending.clear();
+        assertEquals(2, uv3.size());
+        assertEquals((Double) 1.0, uv3.get(1).get(0).getOldValue());
+
+        // a handle setting the value again, NaN included, reports nothing
+        PortHandle handle = robotSensorsData.getPortHandle("EV3", "Nick1", "UV3");
+        handle.set(4);
+        handle.set(Double.NaN);
+        handle.set(Double.NaN);
+        pending.forEach(Runnable::run);
+        pending.clear();
+        assertEquals(3, uv3.size());
+        assertTrue(uv3.get(2).get(0).getNewValue().isNaN());
+
+        robotSensorsData.removePortListener(allListener);
+        robotSensorsData.updateBoardMapValues("{\"GrovePi\": {\"_1\": {\"D2\": 9}}}");
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test
+    public void historyTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\"]}}");
+        assertTrue(robotSensorsData.getRecentHistory("EV3", "1", "2", 500).isEmpty()); // disabled
+
+        robotSensorsData.enableHistory(3);
+        robotSensorsData.addToBoardsMap("{\"GrovePi\": [\"D2\"]}");
+        long start = System.currentTimeMillis();
+        for (int i = 1; i <= 5; i++) {
+            robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": " + i + "}}, \"GrovePi\": {\"_1\": {\"D2\": " + -i + "}}}");
+        }
+        long end = System.currentTimeMillis();
+        PortSamples samples = robotSensorsData.getRecentHistory("EV3", "1", "2", 60_000);
+        assertArrayEquals(new double[]{3, 4, 5}, samples.getValues(), 0);
+        assertTrue(samples.getTimestamp(0) >= start && samples.getTimestamp(2) <= end);
+        assertArrayEquals(new double[]{-3, -4, -5},
+                robotSensorsData.getHistory("GrovePi", "_1", "D2", start, end).getValues(), 0);
+        assertTrue(robotSensorsData.getHistory("GrovePi", "_1", "D2", end + 1, Long.MAX_VALUE).isEmpty());
+        assertNull(robotSensorsData.getHistory("GrovePi", "_1", "D3", start, end));
+
+        // history starts over when the port is added again
+        robotSensorsData.removeFromBoardsMap("{\"EV3\": {\"1\": [\"2\"]}}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\"]}}");
+        assertTrue(robotSensorsData.getRecentHistory("EV3", "1", "2", 60_000).isEmpty());
+        robotSensorsData.getPortHandle("EV3", "1", "2").set(7);
+        assertArrayEquals(new double[]{7}, robotSensorsData.getRecentHistory("EV3", "1", "2", 60_000).getValues(), 0);
+    }
+
+    @Test
+    public void aggregateTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\"]}}");
+        PortAggregate sliding = robotSensorsData.addSlidingAggregate("EV3", "Nick1", "UV3", 3, 0.5);
+        assertEquals(0, sliding.getStatistics().getCount());
+        double[] values = {4, 1, 7, 3, 5};
+        for (double value : values) {
+            robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": " + value + "}}}");
+        }
+        AggregateStatistics statistics = sliding.getStatistics(); // window holds 7, 3, 5
+        assertEquals(3, statistics.getCount());
+        assertEquals(3.0, statistics.getMin(), 0);
+        assertEquals(7.0, statistics.getMax(), 0);
+        assertEquals(5.0, statistics.getMean(), 1e-9);
+        assertEquals(8.0 / 3, statistics.getVariance(), 1e-9);
+        assertEquals(4.4375, statistics.getEwma(), 1e-9); // 4, 2.5, 4.75, 3.875, 4.4375
+        assertNull(sliding.getLastWindow());
+        assertEquals("_2", sliding.getPort());
+
+        PortAggregate tumbling = PortAggregate.tumbling(new java.util.concurrent.locks.StampedLock(), "EV3", "_1", "_2", 100, 1);
+        tumbling.add(1000, 2);
+        tumbling.add(1050, 6);
+        assertEquals(4.0, tumbling.getStatistics().getMean(), 0);
+        assertNull(tumbling.getLastWindow());
+        tumbling.add(1120, 1);
+        assertEquals(1100, tumbling.getStatistics().getWindowStart());
+        assertEquals(1, tumbling.getStatistics().getCount());
+        assertEquals(1000, tumbling.getLastWindow().getWindowStart());
+        assertEquals(2.0, tumbling.getLastWindow().getMin(), 0);
+        assertEquals(6.0, tumbling.getLastWindow().getMax(), 0);
+        assertEquals(4.0, tumbling.getLastWindow().getVariance(), 1e-9);
+
+        robotSensorsData.removeAggregate(sliding);
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 100}}}");
+        assertEquals(7.0, sliding.getStatistics().getMax(), 0);
+    }
+
+    @Test
+    public void binaryValuesTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"3\"]}, \"GrovePi\": [\"D2\"]}");
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 1.5}}, \"GrovePi\": {\"_1\": {\"D2\": 3}}}");
+
+        // same ports added in another order and without nicknames
+        RobotSensorsData receiver = new RobotSensorsData();
+        receiver.addToBoardsMap("{\"GrovePi\": [\"D2\"], \"EV3\": {\"1\": [\"3\", \"2\"]}}");
+        receiver.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_3\": 9}}}");
+        assertEquals(robotSensorsData.getWireSchemaVersion(), receiver.getWireSchemaVersion());
+
+        ByteBuffer buffer = ByteBuffer.allocate(robotSensorsData.getWireMessageSize());
+        assertEquals(buffer.capacity(), robotSensorsData.encodeValues(buffer));
+        buffer.flip();
+        assertEquals(ByteOrder.BIG_ENDIAN, buffer.order()); // order of the buffer is kept
+        assertTrue(receiver.decodeValues(buffer));
+        assertFalse(buffer.hasRemaining());
+        assertEquals((Double) 1.5, receiver.getPortsAndValues("EV3", "_1").get("_2"));
+        assertEquals((Double) 3.0, receiver.getPortsAndValues("GrovePi", "_1").get("D2"));
+        assertNull(receiver.getPortsAndValues("EV3", "_1").get("_3"));
+        assertNull(receiver.snapshot().getValue("GrovePi", "_1", "D2")); // published like port handles
+        assertEquals(3.0, receiver.publishSnapshot().getValue("GrovePi", "_1", "D2"), 0);
+
+        // decoding the same ports over and over allocates nothing
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < 20_000; i++) {
+            buffer.flip();
+            receiver.decodeValues(buffer);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000; i++) {
+            buffer.flip();
+            receiver.decodeValues(buffer);
+        }
+        assertTrue(threads.getThreadAllocatedBytes(thread) - allocated < 1000);
+
+        // different ports
+        receiver.addToBoardsMap("{\"GrovePi\": [\"D3\"]}");
+        buffer.flip();
+        assertFalse(receiver.decodeValues(buffer));
+        assertFalse(buffer.hasRemaining());
+
+        try {
+            receiver.decodeValues(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void utf8BytesTest() throws IOException {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"3\"]}, \"GrovePi\": [\"D2\"]}".getBytes(StandardCharsets.UTF_8));
+        robotSensorsData.removeFromBoardsMap(ByteBuffer.wrap("{\"EV3\": {\"1\": [\"3\"]}}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Set.of("_2"), robotSensorsData.getPorts("EV3", "_1"));
+
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 1}}}".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        direct.put("{\"GrovePi\": {\"_1\": {\"D2\": 2}}}".getBytes(StandardCharsets.UTF_8)).flip();
+        robotSensorsData.updateBoardMapValues(direct);
+        assertFalse(direct.hasRemaining());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        robotSensorsData.toJson(false, out);
+        assertEquals(robotSensorsData.toJson(false), out.toString(StandardCharsets.UTF_8));
+        out.reset();
+        robotSensorsData.toJson(true, out);
+        assertEquals(robotSensorsData.toJson(), out.toString(StandardCharsets.UTF_8));
+
+        // one writer kept over the stream for every message
+        out.reset();
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        robotSensorsData.toJson(false, writer);
+        writer.flush();
+        assertEquals(robotSensorsData.toJson(false), out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void coalescedUpdatesTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"3\"]}, \"GrovePi\": [\"D2\"]}");
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_3\": 5}}}");
+        robotSensorsData.toJson();
+        List<List<PortChange>> batches = new ArrayList<>();
+        robotSensorsData.addPortListener(null, null, null, batches::add);
+        long version = robotSensorsData.snapshot().getVersion();
+
+        robotSensorsData.updateBoardMapValues(List.of(
+                "{\"EV3\": {\"_1\": {\"_2\": 1, \"_3\": 6}}}",
+                "{\"EV3\": {\"Nick1\": {\"UV3\": 2}}, \"GrovePi\": {\"_1\": {\"D2\": 3}}}",
+                "{\"EV3\": {\"_1\": {\"_3\": 5}}, \"Unknown\": {\"_1\": {\"A\": 1}}}"));
+        assertEquals((Double) 2.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("_2"));
+        assertEquals((Double) 3.0, robotSensorsData.getPortsAndValues("GrovePi", "_1").get("D2"));
+        assertEquals(version + 1, robotSensorsData.snapshot().getVersion()); // published once
+        assertTrue(robotSensorsData.isUpdated());
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size()); // _3 ends where it started
+        assertNull(batches.get(0).get(0).getOldValue());
+        assertEquals((Double) 2.0, batches.get(0).get(0).getNewValue());
+
+        robotSensorsData.updateBoardMapValuesFromBytes(List.of(
+                "{\"GrovePi\": {\"_1\": {\"D2\": null}}}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(robotSensorsData.getPortsAndValues("GrovePi", "_1").get("D2"));
+    }
+
+    @Test
+    public void persistenceTest() throws IOException {
+        Path directory = Files.createTempDirectory("sensors");
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"3\"]}, \"GrovePi\": [\"D2\"]}");
+        robotSensorsData.enablePersistence(directory, 256);
+        for (int i = 0; i < 20; i++) { // Fills the journal several times over
+            robotSensorsData.updateBoardMapValues("{\"EV3\": {\"Nick1\": {\"UV3\": " + i + "}}}");
+        }
+        robotSensorsData.updateBoardMapValues("{\"GrovePi\": {\"_1\": {\"D2\": 7}}}");
+        robotSensorsData.disablePersistence();
+        robotSensorsData.updateBoardMapValues("{\"GrovePi\": {\"_1\": {\"D2\": 8}}}"); // Not persisted
+
+        RobotSensorsData restored = RobotSensorsData.restore(directory);
+        assertEquals(robotSensorsData.getBoardNames(), restored.getBoardNames());
+        assertEquals(19.0, restored.getPortsAndValues("EV3", "Nick1").get("UV3"), 0);
+        assertEquals(19.0, restored.getPortsAndValues("EV3", "_1").get("_2"), 0);
+        assertNull(restored.getPortsAndValues("EV3", "_1").get("_3"));
+        assertEquals(Set.of("_3"), restored.getPorts("EV3", "_1").stream()
+                .filter(port -> !port.equals("_2") && !port.equals("UV3")).collect(Collectors.toSet()));
+        assertEquals(7.0, restored.getPortsAndValues("GrovePi", "_1").get("D2"), 0);
+
+        restored.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_3\": 3}}}");
+        restored.disablePersistence();
+        RobotSensorsData again = RobotSensorsData.restore(directory);
+        assertEquals(3.0, again.getPortsAndValues("EV3", "Nick1").get("_3"), 0);
+        assertEquals(restored.toJson(), again.toJson());
+        again.disablePersistence();
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        robotSensorsData = new RobotSensorsData();
+        assertNull(robotSensorsData.getMetrics());
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"3\"]}}");
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 1}}}"); // Not counted
+
+        String objectName = "RobotData:type=RobotSensorsData,name=metricsTest";
+        SensorMetrics metrics = robotSensorsData.enableMetrics(objectName);
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"Nick1\": {\"UV3\": 2, \"_3\": 3, \"_4\": 4}, \"_2\": {\"_2\": 1}}, \"GrovePi\": {}}");
+        robotSensorsData.updateBoardMapValues(List.of("{\"EV3\": {\"_1\": {\"_2\": 5}}}", "{\"EV3\": {\"_1\": {\"_3\": 6}}}"));
+        robotSensorsData.addToBoardsMap("{\"GrovePi\": [\"D2\"]}");
+        robotSensorsData.toJson();
+
+        assertEquals(3, metrics.getUpdates());
+        assertEquals(4, metrics.getValuesApplied());
+        assertEquals(3, metrics.getUnknownPortsIgnored());
+        assertEquals(2, metrics.getBoardCount());
+        assertEquals(3, metrics.getPortCount());
+        assertEquals(2, metrics.getUpdateLatency().getCount());
+        assertEquals(1, metrics.getAddLatency().getCount());
+        assertEquals(0, metrics.getRemoveLatency().getCount());
+        LatencyStatistics toJson = metrics.getToJsonLatency();
+        assertEquals(1, toJson.getCount());
+        assertTrue(toJson.getP50Nanos() <= toJson.getMaxNanos() && toJson.getMaxNanos() > 0);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+        assertEquals(3L, server.getAttribute(name, "Updates"));
+        assertEquals(1L, ((CompositeData) server.getAttribute(name, "AddLatency")).get("count"));
+        server.invoke(name, "reset", null, null);
+        assertEquals(0, metrics.getUpdates());
+
+        // failed updates are counted by both update paths
+        for (Runnable update : List.<Runnable>of(() -> robotSensorsData.updateBoardMapValues("{\"EV3\": ["),
+                () -> robotSensorsData.updateBoardMapValues(List.of("{\"EV3\": {}}", "{\"EV3\": [")))) {
+            try {
+                update.run();
+                fail();
+            } catch (RuntimeException ignored) {
+            }
+        }
+        assertEquals(3, metrics.getUpdates());
+        assertEquals(2, metrics.getUpdateLatency().getCount());
+        metrics.reset();
+
+        robotSensorsData.disableMetrics();
+        assertNull(robotSensorsData.getMetrics());
+        assertFalse(server.isRegistered(name));
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 7}}}");
+        assertEquals(0, metrics.getUpdates());
+    }
+
+    @Test
+    public void robotRegistryTest() {
+        RobotRegistry registry = new RobotRegistry(4, Runnable::run);
+        String nicknames = "{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}";
+        String boards = "{\"EV3\": {\"1\": [\"2\", \"3\"]}}";
+        for (int i = 0; i < 100; i++) {
+            registry.register("robot" + i, nicknames, boards);
+        }
+        RobotSensorsData other = registry.register("other", null, "{\"GrovePi\": [\"D2\"]}");
+        assertEquals(101, registry.size());
+        assertEquals(2, registry.getConfigurationCount());
+        try {
+            registry.register("robot1", nicknames, boards);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        Map<String, List<String>> updates = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            updates.put("robot" + i, List.of("{\"EV3\": {\"Nick1\": {\"UV3\": " + i + "}}}", "{\"EV3\": {\"_1\": {\"_3\": 1}}}"));
+        }
+        updates.put("unknown", List.of("{\"EV3\": {\"_1\": {\"_3\": 1}}}"));
+        updates.put("other", List.of("{\"GrovePi\": {\"_1\": {\"D2\": 5}}}"));
+        registry.updateAll(updates);
+        for (int i = 0; i < 100; i++) {
+            RobotSensorsData robot = registry.get("robot" + i);
+            assertEquals(i, robot.getPortsAndValues("EV3", "_1").get("_2"), 0);
+            assertEquals(1.0, robot.getPortsAndValues("EV3", "Nick1").get("_3"), 0);
+            assertEquals(i, robot.snapshot().getValue("EV3", "Nick1", "UV3"), 0);
+        }
+        assertEquals(5.0, other.getPortsAndValues("GrovePi", "_1").get("D2"), 0);
+        assertFalse(registry.update("unknown", "{}"));
+
+        // Robots sharing a configuration change their ports independently
+        RobotSensorsData robot1 = registry.get("robot1");
+        RobotSensorsData robot2 = registry.get("robot2");
+        robot1.addToBoardsMap("{\"EV3\": {\"1\": [\"4\"], \"2\": [\"1\"]}}");
+        robot1.removeFromBoardsMap("{\"EV3\": {\"Nick1\": [\"UV3\"]}}");
+        assertEquals(Set.of("_3", "_4"), robot1.getPorts("EV3", "Nick1"));
+        assertEquals(Set.of("_1"), robot1.getPorts("EV3", "_2"));
+        assertEquals(Set.of("_2", "UV3", "_3"), robot2.getPorts("EV3", "Nick1"));
+        assertNull(robot2.getPorts("EV3", "_2"));
+        assertEquals(2.0, robot2.getPortsAndValues("EV3", "_1").get("UV3"), 0);
+        robot2.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick2\"}]}");
+        assertEquals(Set.of("_2", "_3"), robot2.getPorts("EV3", "Nick2"));
+        assertEquals(Set.of("_2", "UV3", "_3"), registry.register("robot100", nicknames, boards).getPorts("EV3", "Nick1"));
+
+        // A robot sharing a small configuration grows past it
+        RobotSensorsData robot3 = registry.get("robot3");
+        PortHandle handle = robot3.getPortHandle("EV3", "Nick1", "UV3");
+        StringBuilder ports = new StringBuilder("{\"GrovePi\": [\"A0\"");
+        for (int i = 1; i < 2000; i++) {
+            ports.append(", \"A").append(i).append('"');
+        }
+        robot3.addToBoardsMap(ports.append("]}").toString());
+        handle.set(33);
+        robot3.updateBoardMapValues("{\"GrovePi\": {\"_1\": {\"A0\": 1, \"A1999\": 2}}}");
+        assertEquals(33.0, robot3.getPortsAndValues("EV3", "_1").get("_2"), 0);
+        assertEquals(3.0, robot3.getPortsAndValues("GrovePi", "_1").values().stream().mapToDouble(v -> v == null ? 0 : v).sum(), 0);
+        assertEquals(2000, robot3.getPorts("GrovePi", "_1").size());
+
+        assertSame(robot1, registry.remove("robot1"));
+        assertNull(registry.get("robot1"));
+        assertEquals(101, registry.getRobotIds().size());
+
+        // Configurations are compared parsed and dropped with their last robot
+        registry.register("spaced", " { \"EV3\" : [ { \"2\" : {\"Name\": \"UV3\"}, \"Name\" : \"Nick1\" } ] } ", " {\"EV3\": {\"1\": [\"2\", \"3\"]}} ");
+        assertEquals(2, registry.getConfigurationCount());
+        assertSame(other, registry.remove("other"));
+        assertNull(registry.remove("other"));
+        assertEquals(1, registry.getConfigurationCount());
+        registry.getRobotIds().forEach(registry::remove);
+        assertEquals(0, registry.getConfigurationCount());
+
+        // Robots registered and removed at the same time leave no configuration behind
+        java.util.stream.IntStream.range(0, 4000).parallel().forEach(i -> {
+            String robotId = "racing" + i % 8;
+            try {
+                registry.register(robotId, null, "{\"GrovePi\": [\"D" + i % 3 + "\"]}");
+            } catch (IllegalArgumentException ignored) { // Registered by another thread
+            }
+            registry.remove(robotId);
+        });
+        registry.getRobotIds().forEach(registry::remove);
+        assertEquals(0, registry.getConfigurationCount());
+    }
+
+    @Test
+    public void recordAndReplayTest() throws IOException {
+        Path file = Files.createTempFile("traffic", ".rec");
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        try (TrafficRecorder recorder = new TrafficRecorder(file)) {
+            robotSensorsData.setCallRecorder(recorder);
+            robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"3\"]}, \"GrovePi\": [\"D2\"]}");
+            robotSensorsData.updateBoardMapValues("{\"EV3\": {\"Nick1\": {\"UV3\": 1}}}");
+            recorder.recordDelivery(QueueNameEnum.Data, "first".getBytes(StandardCharsets.UTF_8));
+            robotSensorsData.updateBoardMapValues(List.of("{\"EV3\": {\"_1\": {\"_3\": 2}}}", "{\"GrovePi\": {\"_1\": {\"D2\": 3}}}"));
+            ByteBuffer buffer = ByteBuffer.wrap("{\"GrovePi\": [\"D2\"]}".getBytes(StandardCharsets.UTF_8));
+            robotSensorsData.removeFromBoardsMap(buffer);
+            recorder.recordDelivery(QueueNameEnum.SOS, "second".getBytes(StandardCharsets.UTF_8));
+            robotSensorsData.setCallRecorder(null);
+            robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_3\": 4}}}"); // Not recorded
+        }
+
+        for (double speed : new double[]{TrafficReplayer.MAX_SPEED, 1000}) {
+            RobotSensorsData replayed = new RobotSensorsData();
+            replayed.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+            List<String> deliveries = new ArrayList<>();
+            DeliverCallback consumer = (consumerTag, delivery) -> deliveries.add(delivery.getEnvelope().getRoutingKey()
+                    + ":" + new String(delivery.getBody(), StandardCharsets.UTF_8));
+            List<Integer> batches = new ArrayList<>();
+            replayed.addPortListener(null, null, null, changes -> batches.add(changes.size()));
+            long count = new TrafficReplayer(file).replay(replayed, Map.of(QueueNameEnum.Data, consumer, QueueNameEnum.SOS, consumer), speed);
+            assertEquals(6, count);
+            assertEquals(List.of("Data:first", "SOS:second"), deliveries);
+            assertEquals(List.of(1, 2), batches); // the batch is replayed as one update
+            assertEquals(robotSensorsData.getBoardNames(), replayed.getBoardNames());
+            assertEquals(Set.of(), replayed.getPorts("GrovePi", "_1"));
+            assertEquals(1.0, replayed.getPortsAndValues("EV3", "_1").get("_2"), 0);
+            assertEquals(2.0, replayed.getPortsAndValues("EV3", "_1").get("_3"), 0);
+        }
+        assertEquals(1, new TrafficReplayer(file).replay(null, Map.of(QueueNameEnum.SOS, (tag, delivery) -> {}), TrafficReplayer.MAX_SPEED));
+    }
+
+    @Test
+    public void portFilterTest() throws InterruptedException {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"3\", \"4\"]}, \"GrovePi\": [\"D2\"]}");
+        robotSensorsData.setBoardFilter("EV3", PortFilter.deadBand(0.5));
+        robotSensorsData.setPortFilter("EV3", "Nick1", "_3", PortFilter.relativeDeadBand(0.1));
+        robotSensorsData.setPortFilter("EV3", "1", "4", PortFilter.minInterval(60_000));
+        SensorMetrics metrics = robotSensorsData.enableMetrics(null);
+        List<PortChange> changes = new ArrayList<>();
+        robotSensorsData.addPortListener("EV3", null, null, changes::addAll);
+
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"Nick1\": {\"UV3\": 10, \"_3\": 100, \"_4\": 1}}, \"GrovePi\": {\"_1\": {\"D2\": 1}}}");
+        assertEquals(3, changes.size());
+        robotSensorsData.toJson();
+        assertFalse(robotSensorsData.isUpdated());
+
+        // All within their bands or too soon
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 10.4, \"_3\": 105, \"_4\": 50}}}");
+        assertFalse(robotSensorsData.isUpdated());
+        robotSensorsData.updateBoardMapValues(List.of("{\"EV3\": {\"_1\": {\"_2\": 9.6}}}", "{\"EV3\": {\"_1\": {\"_3\": 91}}}"));
+        assertFalse(robotSensorsData.isUpdated());
+        assertEquals(3, changes.size());
+        assertEquals(10.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("_2"), 0);
+        assertEquals(100.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("_3"), 0);
+        assertEquals(1.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("_4"), 0);
+        assertEquals(5, metrics.getValuesSuppressed());
+
+        // Outside the bands, clearing a value and ports of boards without filters always pass
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": 10.6, \"_3\": null}}, \"GrovePi\": {\"_1\": {\"D2\": 1.01}}}");
+        assertTrue(robotSensorsData.isUpdated());
+        assertEquals(10.6, robotSensorsData.getPortsAndValues("EV3", "_1").get("_2"), 0);
+        assertNull(robotSensorsData.getPortsAndValues("EV3", "_1").get("_3"));
+        assertEquals(1.01, robotSensorsData.getPortsAndValues("GrovePi", "_1").get("D2"), 0);
+
+        // Port filter removed, the board filter applies again, also to ports added later
+        robotSensorsData.setPortFilter("EV3", "Nick1", "4", null);
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"5\"]}}");
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_4\": 1.2, \"_5\": 3}}}");
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_4\": 5, \"_5\": 3.2}}}");
+        assertEquals(5.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("_4"), 0);
+        assertEquals(3.0, robotSensorsData.getPortsAndValues("EV3", "_1").get("_5"), 0);
+
+        robotSensorsData.setBoardFilter("EV3", null);
+        robotSensorsData.setPortFilter("EV3", "_1", "_3", null);
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_5\": 3.2}}}");
+        assertEquals(3.2, robotSensorsData.getPortsAndValues("EV3", "_1").get("_5"), 0);
+
+        // A port keeps its time when other ports change, a port in the slot of a removed one starts without
+        robotSensorsData.setBoardFilter("GrovePi", PortFilter.minInterval(60_000));
+        robotSensorsData.updateBoardMapValues("{\"GrovePi\": {\"_1\": {\"D2\": 2}}}");
+        robotSensorsData.addToBoardsMap("{\"GrovePi\": [\"D4\"]}");
+        robotSensorsData.removeFromBoardsMap("{\"GrovePi\": [\"D4\"]}");
+        robotSensorsData.updateBoardMapValues("{\"GrovePi\": {\"_1\": {\"D2\": 3}}}");
+        assertEquals(2.0, robotSensorsData.getPortsAndValues("GrovePi", "_1").get("D2"), 0);
+        robotSensorsData.removeFromBoardsMap("{\"GrovePi\": [\"D2\"]}");
+        robotSensorsData.addToBoardsMap("{\"GrovePi\": [\"D3\"]}");
+        robotSensorsData.updateBoardMapValues("{\"GrovePi\": {\"_1\": {\"D3\": 4}}}");
+        assertEquals(4.0, robotSensorsData.getPortsAndValues("GrovePi", "_1").get("D3"), 0);
+        try {
+            PortFilter.deadBand(-1);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void stalePortsTest() throws InterruptedException {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\", \"3\", \"4\"]}, \"GrovePi\": [\"D2\", \"D3\"]}");
+        long added = robotSensorsData.getReceiveTime("EV3", "Nick1", "UV3");
+        assertTrue(added > 0);
+        assertEquals(-1, robotSensorsData.getReceiveTime("EV3", "_1", "_9"));
+        assertTrue(robotSensorsData.getStalePorts(60_000).isEmpty());
+        robotSensorsData.setPortFilter("GrovePi", "_1", "D3", PortFilter.deadBand(1));
+
+        Thread.sleep(50);
+        robotSensorsData.updateBoardMapValues("{\"EV3\": {\"Nick1\": {\"UV3\": 1, \"_3\": null}}, \"GrovePi\": {\"_1\": {\"D3\": 0.5}}}");
+        PortHandle handle = robotSensorsData.getPortHandle("GrovePi", "_1", "D2");
+        handle.set(2);
+        assertTrue(robotSensorsData.getReceiveTime("EV3", "_1", "_2") >= added + 50);
+        assertEquals(handle.getReceiveTime(), robotSensorsData.getReceiveTime("GrovePi", "_1", "D2"));
+        assertEquals(Map.of("EV3", Map.of("_1", Map.of("_4", added))), robotSensorsData.getStalePorts(40));
+
+        // Oldest first, a filtered value still counts as received
+        Thread.sleep(50);
+        robotSensorsData.updateBoardMapValues(List.of("{\"EV3\": {\"_1\": {\"_4\": 4}}}", "{\"GrovePi\": {\"_1\": {\"D3\": 0.6}}}"));
+        Map<String, Map<String, Map<String, Long>>> stale = robotSensorsData.getStalePorts(40);
+        assertEquals(Set.of("EV3", "GrovePi"), stale.keySet());
+        assertEquals(List.of("_2", "_3"), new ArrayList<>(stale.get("EV3").get("_1").keySet()));
+        assertEquals(Set.of("D2"), stale.get("GrovePi").get("_1").keySet());
+        assertEquals(0.5, robotSensorsData.getPortsAndValues("GrovePi", "_1").get("D3"), 0);
+
+        // Removed ports are no longer tracked, added ones start from now
+        robotSensorsData.removeFromBoardsMap("{\"EV3\": {\"1\": [\"2\"]}}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"5\"]}}");
+        assertEquals(Set.of("_3"), robotSensorsData.getStalePorts(40).get("EV3").get("_1").keySet());
+        Thread.sleep(50);
+        assertEquals(List.of("_3", "_4", "_5"), new ArrayList<>(robotSensorsData.getStalePorts(40).get("EV3").get("_1").keySet()));
+
+        RobotSensorsData copy = robotSensorsData.deepCopy();
+        assertTrue(copy.getStalePorts(40).isEmpty());
+        robotSensorsData.clear();
+        assertTrue(robotSensorsData.getStalePorts(0).isEmpty());
+    }
+
+    @Test
+    public void parallelUpdateTest() {
+        String nicknames = "{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}";
+        String boards = "{\"EV3\": {\"1\": [\"2\", \"3\"], \"2\": [\"1\"]}, \"GrovePi\": [\"D2\", \"D3\"], \"BrickPi3\": {\"1\": [\"A\"]}}";
+        List<String> updates = List.of(
+                "{\"EV3\": {\"Nick1\": {\"UV3\": 1, \"_3\": \"3.5\"}, \"_2\": {\"_1\": 2}}, \"Unknown\": {\"_1\": {\"x\": 1}},"
+                        + " \"GrovePi\": {\"_1\": {\"D2\": 4, \"D3\": null, \"D9\": 1}}, \"EV3\": {\"_1\": {\"_3\": 5}}}",
+                " { \"BrickPi3\" : { \"_1\" : { \"A\" : -1e3 } } , \"GrovePi\" : { \"_1\" : { \"D3\" : 7 } } } ",
+                "{\"EV3\": {\"_1\": {\"_2\": 8}}}",
+                "{'EV3': {'_1': {'_2': 9}}, \"GrovePi\": {\"_1\": {\"D2\": 10}}}");
+
+        RobotSensorsData serial = new RobotSensorsData();
+        RobotSensorsData parallel = new RobotSensorsData();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        parallel.enableParallelUpdates(1, pool);
+        List<PortChange> serialChanges = new ArrayList<>();
+        List<PortChange> parallelChanges = new ArrayList<>();
+        for (RobotSensorsData robot : List.of(serial, parallel)) {
+            robot.buildNicknameMaps(nicknames);
+            robot.addToBoardsMap(boards);
+            robot.addPortListener("EV3", null, null, (robot == serial ? serialChanges : parallelChanges)::addAll);
+        }
+        for (String update : updates) {
+            serial.updateBoardMapValues(update);
+            parallel.updateBoardMapValues(update);
+            assertEquals(serial.toJson(), parallel.toJson());
+        }
+        assertEquals(serialChanges.toString(), parallelChanges.toString());
+
+        String update = "{\"EV3\": {\"_1\": {\"UV3\": 11}}, \"BrickPi3\": {\"_1\": {\"A\": 12}}}";
+        serial.updateBoardMapValues(update.getBytes(StandardCharsets.UTF_8));
+        parallel.updateBoardMapValues(update.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.put("{\"GrovePi\": {\"_1\": {\"D2\": 13}}, \"BrickPi3\": {\"_1\": {\"A\": 14}}}".getBytes(StandardCharsets.UTF_8)).flip();
+        parallel.updateBoardMapValues(buffer);
+        assertFalse(buffer.hasRemaining());
+        serial.updateBoardMapValues("{\"GrovePi\": {\"_1\": {\"D2\": 13}}, \"BrickPi3\": {\"_1\": {\"A\": 14}}}");
+        assertEquals(serial.toJson(), parallel.toJson());
+
+        for (RobotSensorsData robot : List.of(serial, parallel)) { // Same failure either way
+            try {
+                robot.updateBoardMapValues("{\"EV3\": {\"_1\": {\"_2\": x}}, \"GrovePi\": {\"_1\": {\"D2\": 15}}}");
+                fail();
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        parallel.disableParallelUpdates();
+        pool.shutdown();
+    }
+
     @Test
     public void buildNicknameMaps() {
         robotSensorsData = new RobotSensorsData();
@@ -314,6 +1150,18 @@ public class RobotSensorsDataTest {
         assertTrue(ports.contains("Led2"));
     }
 
+    @Test
+    public void addToBoardsMapResolvesPrefixedIndexNicknamesTest() {
+        robotSensorsData = new RobotSensorsData();
+        robotSensorsData.buildNicknameMaps("{\"EV3\": [{\"Name\": \"Nick1\", \"2\": {\"Name\": \"UV3\"}}]}");
+        robotSensorsData.addToBoardsMap("{\"EV3\": {\"1\": [\"2\"]}}");
+
+        Set<String> expected = Set.of("_2", "UV3");
+        assertEquals(expected, robotSensorsData.getPorts("EV3", "_1"));
+        assertEquals(expected, robotSensorsData.getPorts("EV3", "Nick1"));
+        assertEquals("{\"EV3\":{\"1\":[\"2\"]}}", robotSensorsData.replaceNicksInJson("{\"EV3\":{\"Nick1\":[\"UV3\"]}}"));
+    }
+
     @Test
     public void getBoardNamesTest() {
         robotSensorsData = new RobotSensorsData();
@@ -518,6 +1366,20 @@ public class RobotSensorsDataTest {
         for (int i = 0; i < testCases.length; i += 2) {
             assertEquals(String.format("Input :%s\n",testCases[i]), testCases[i+1], robotSensorsData.replaceNicksInJson(testCases[i]));
         }
+
+        // Values are written as Gson writes them, null ports are dropped
+        assertEquals("{\"EV3\":{\"1\":{\"A\":{\"mode\":\"\\u003cfast\\u003e\",\"on\":true,\"steps\":[1.0,2.0]}}}}",
+                robotSensorsData.replaceNicksInJson("{\"EV3\":{\"Nick1\":{\"NickA\":{\"mode\":\"<fast>\",\"on\":true,\"steps\":[1,2]},\"NickB\":null}}}"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 2; i++) { // Output buffer reused for every command
+            out.reset();
+            try {
+                robotSensorsData.replaceNicksInJson("{\"EV3\":[\"NickB\"]}", out);
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+            assertEquals("{\"EV3\":{\"1\":[\"B\"]}}", out.toString(StandardCharsets.UTF_8));
+        }
     }
 
     String[] testCasesForReplaceNicksInJsonTest = {
@@ -546,8 +1408,8 @@ public class RobotSensorsDataTest {
             "{\"EV3\":{\"Nick1\":[\"HAHAHA\",\"NickA\"]}}", "{\"EV3\":{\"1\":[\"HAHAHA\",\"A\"]}}",
             "{\"EV3\":{\"Nick1\":[\"NickA\",\"HAHAHA\"]}}", "{\"EV3\":{\"1\":[\"A\",\"HAHAHA\"]}}",
             "{\"EV3\":{\"Nick1\":{\"NickA\":50,\"HAHAHA\":60}}}", "{\"EV3\":{\"1\":{\"A\":50.0,\"HAHAHA\":60.0}}}",
-            "{\"EV3\":{\"1\":{\"NickA\":50.1,\"HAHAHA\":60.0,\"B\":70.0}}}", "{\"EV3\":{\"1\":{\"A\":50.1,\"B\":70.0,\"HAHAHA\":60.0}}}",
-            "{\"EV3\":{\"1\":{\"NickA\":50.2,\"HAHAHA\":60.0,\"NickB\":70.0}}}", "{\"EV3\":{\"1\":{\"A\":50.2,\"B\":70.0,\"HAHAHA\":60.0}}}",
+            "{\"EV3\":{\"1\":{\"NickA\":50.1,\"HAHAHA\":60.0,\"B\":70.0}}}", "{\"EV3\":{\"1\":{\"A\":50.1,\"HAHAHA\":60.0,\"B\":70.0}}}",
+            "{\"EV3\":{\"1\":{\"NickA\":50.2,\"HAHAHA\":60.0,\"NickB\":70.0}}}", "{\"EV3\":{\"1\":{\"A\":50.2,\"HAHAHA\":60.0,\"B\":70.0}}}",
             "{\"EV3\":{\"1\":{\"A\":50.0,\"NickB\":70.0,\"HAHAHA\":60.0}}}", "{\"EV3\":{\"1\":{\"A\":50.0,\"B\":70.0,\"HAHAHA\":60.0}}}",
             "{\"EV3\":{\"1\":{}}}", "{\"EV3\":{\"1\":{}}}",
             "{\"EV3\":{\"Nick1\":{}}}", "{\"EV3\":{\"1\":{}}}",
@@ -556,7 +1418,7 @@ public class RobotSensorsDataTest {
             "{\"EV3\":{}}", "{\"EV3\":{}}",
             "{\"EV3\":{\"B\":70.0,\"C\":50.0,\"speed\":15.0}}","{\"EV3\":{\"1\":{\"B\":70.0,\"C\":50.0,\"speed\":15.0}}}",
             "{\"EV3\":{\"NickB\":70.0,\"C\":50.0,\"speed\":15.0}}","{\"EV3\":{\"1\":{\"B\":70.0,\"C\":50.0,\"speed\":15.0}}}",
-            "{\"EV3\":{\"NickB\":70.0,\"NickA\":50.0,\"speed\":15.0}}","{\"EV3\":{\"1\":{\"A\":50.0,\"B\":70.0,\"speed\":15.0}}}",
+            "{\"EV3\":{\"NickB\":70.0,\"NickA\":50.0,\"speed\":15.0}}","{\"EV3\":{\"1\":{\"B\":70.0,\"A\":50.0,\"speed\":15.0}}}",
     };
 
 }
\ No newline at end of file